@@ -7,10 +7,13 @@ import java.net.MalformedURLException;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 import server.KeyValue;
+import utils.KVConfig;
 import utils.KVLogger;
 
 /**
@@ -22,6 +25,13 @@ import utils.KVLogger;
 public class ClientController {
   private static KVLogger logger = new KVLogger("ClientController");
 
+  // optional read cache, null when disabled
+  private static KVCache cache = KVConfig.CLIENT_CACHE_SIZE > 0
+          ? new KVCache(KVConfig.CLIENT_CACHE_SIZE, KVConfig.CLIENT_CACHE_LEASE_MS) : null;
+
+  // watch subscriber, created by the first WATCH command
+  private static WatchPrinter watchPrinter;
+
   public static void main(String[] args) {
     // input args contain a port number and a host name
     if (args == null || args.length != 2) {
@@ -50,9 +60,10 @@ public class ClientController {
 
       while (true) {
         System.out.println("Enter the operation to be performed:");
-        System.out.println("PUT <key> <value>");
+        System.out.println("PUT <key> <value> [ttl in ms]");
         System.out.println("GET <key>");
         System.out.println("DELETE <key>");
+        System.out.println("WATCH <key or key prefix>");
 
         String str = userInput.readLine();
 
@@ -61,10 +72,17 @@ public class ClientController {
 
         // handle the exit command and other invalid commands
         if (cmd.equalsIgnoreCase("exit")) {
+          if (cache != null) {
+            logger.logInfoMessage(cache.stats());
+          }
+          if (watchPrinter != null) {
+            UnicastRemoteObject.unexportObject(watchPrinter, true);
+          }
           break;
         } else if (!(cmd.equalsIgnoreCase("put")
                 || cmd.equalsIgnoreCase("get")
-                || cmd.equalsIgnoreCase("delete"))) {
+                || cmd.equalsIgnoreCase("delete")
+                || cmd.equalsIgnoreCase("watch"))) {
           printInvalid("", str);
         }
 
@@ -98,7 +116,18 @@ public class ClientController {
     String cmd = strings[0];
 
     if (cmd.equalsIgnoreCase("put")) {
-      if (strings.length != 3) {
+      if (strings.length != 3 && strings.length != 4) {
+        printInvalid("PUT", str);
+        return cmd;
+      }
+      long ttlMillis;
+      try {
+        ttlMillis = strings.length == 4 ? Long.parseLong(strings[3]) : 0;
+      } catch (NumberFormatException e) {
+        printInvalid("PUT", str);
+        return cmd;
+      }
+      if (ttlMillis < 0) {
         printInvalid("PUT", str);
         return cmd;
       }
@@ -107,11 +136,19 @@ public class ClientController {
               + "PORT_NO: " + portNum + "; "
               + "REQUEST - PUT; "
               + "KEY: " + strings[1] + "; "
-              + "VALUE: " + strings[2]);
-
-      boolean isPut = kv.put(strings[1], strings[2]);
-      if (isPut) {
+              + "VALUE: " + strings[2]
+              + (ttlMillis > 0 ? "; TTL: " + ttlMillis + "ms" : ""));
+
+      String key = strings[1];
+      String value = strings[2];
+      int putCode = withRetry(() -> kv.put(key, value, ttlMillis));
+      if (cache != null) {
+        cache.invalidate(strings[1]);
+      }
+      if (putCode == 200) {
         logger.logInfoMessage("; RESPONSE - Put operation successful");
+      } else if (putCode == 503) {
+        logger.logWarningMessage("; RESPONSE - Server overloaded while storing " + strings[1]);
       } else {
         logger.logWarningMessage("; RESPONSE - Something went wrong while storing " + strings[1]);
       }
@@ -127,7 +164,7 @@ public class ClientController {
               + "REQUEST - GET; "
               + "KEY: " + strings[1] + "; ");
 
-      String val = kv.get(strings[1]);
+      String val = get(strings[1], kv);
       if (val != null) {
         logger.logInfoMessage("; RESPONSE - " + val);
       } else {
@@ -145,20 +182,100 @@ public class ClientController {
               + "REQUEST - DELETE; "
               + "KEY: " + strings[1] + "; ");
 
-      int deleteCode = kv.delete(strings[1]);
+      String key = strings[1];
+      int deleteCode = withRetry(() -> kv.delete(key));
+      if (cache != null) {
+        cache.invalidate(strings[1]);
+      }
       if (deleteCode == 200) {
         logger.logInfoMessage("; RESPONSE - Delete operation successful");
       } else if (deleteCode == 404){
         logger.logWarningMessage("; RESPONSE - key not found");
+      } else if (deleteCode == 503) {
+        logger.logWarningMessage("; RESPONSE - Server overloaded while deleting " + strings[1]);
       } else {
         logger.logErrorMessage("Something went wrong while deleting " + strings[1]);
       }
 
+    } else if (cmd.equalsIgnoreCase("watch")) {
+      if (strings.length != 2) {
+        printInvalid("WATCH", str);
+        return cmd;
+      }
+
+      logger.logInfoMessage("; HOST: " + hostName + "; "
+              + "PORT_NO: " + portNum + "; "
+              + "REQUEST - WATCH; "
+              + "KEY OR PREFIX: " + strings[1] + "; ");
+
+      // resume after the last event already seen, or start with the next commit
+      if (watchPrinter == null) {
+        watchPrinter = new WatchPrinter();
+      }
+      long fromSequence = watchPrinter.getLastSequence() > 0
+              ? watchPrinter.getLastSequence() : kv.getLogSequence();
+      kv.watch(strings[1], fromSequence, watchPrinter);
+      logger.logInfoMessage("; RESPONSE - Watching " + strings[1] + " after sequence " + fromSequence);
+
     }
 
     return cmd;
   }
 
+  /**
+   * Helper method for running a write that the server may reject as overloaded (code 503).
+   * A rejected write is retried after a randomized wait that doubles on every retry, up to the
+   * configured number of retries, so that an overloaded server gets room to drain its queue.
+   *
+   * @param write the write to run, returning its status code
+   * @return the status code of the last attempt
+   * @throws RemoteException
+   */
+  private static int withRetry(RemoteWrite write) throws RemoteException {
+    long retryAfter = KVConfig.CLIENT_RETRY_AFTER_MS;
+    int code = write.run();
+    for (int retry = 0; code == 503 && retry < KVConfig.CLIENT_MAX_RETRIES; retry++) {
+      logger.logWarningMessage("; RESPONSE - Server overloaded, retrying in about " + retryAfter + "ms");
+      try {
+        Thread.sleep(retryAfter / 2 + ThreadLocalRandom.current().nextLong(retryAfter / 2 + 1));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return code;
+      }
+      retryAfter *= 2;
+      code = write.run();
+    }
+    return code;
+  }
+
+  /**
+   * A remote write returning a status code, for withRetry.
+   */
+  private interface RemoteWrite {
+    int run() throws RemoteException;
+  }
+
+  /**
+   * Helper method for getting the value of a key, through the read cache when it is enabled.
+   * A cached value is served while its lease is valid, and revalidated by version afterwards.
+   *
+   * @param key the given key to get
+   * @param kv  the remote object reference
+   * @return the value of the given key, otherwise null if the given key is not in the store
+   * @throws RemoteException
+   */
+  private static String get(String key, KeyValue kv) throws RemoteException {
+    if (cache == null) {
+      return kv.get(key);
+    }
+
+    String val = cache.getFresh(key);
+    if (val != null) {
+      return val;
+    }
+    return cache.update(key, kv.getVersioned(key, cache.getVersion(key)));
+  }
+
   /**
    * Helper method for print invalid request log messages, to avoid code duplication.
    *
@@ -0,0 +1,128 @@
+package client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import utils.VersionedValue;
+
+/**
+ * This class represents the optional client-side read cache.
+ * It is a bounded LRU map from key to the last value read and its version. Every entry holds a
+ * lease; within the lease a get is served locally, and after it the entry is revalidated with the
+ * server by version, which only sends the value back if it has changed. The client's own writes
+ * invalidate the key right away. Hits, misses, revalidations and evictions are counted.
+ */
+public class KVCache {
+  private final int capacity;
+  private final long leaseMillis;
+  private final LinkedHashMap<String, Entry> entries;
+
+  // metrics
+  private long hits;
+  private long misses;
+  private long revalidations;
+  private long evictions;
+
+  public KVCache(int capacity, long leaseMillis) {
+    this.capacity = capacity;
+    this.leaseMillis = leaseMillis;
+    // access-ordered, so the eldest entry is the least recently used one
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        if (size() > KVCache.this.capacity) {
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Return the cached value of the given key if its lease is still valid, otherwise null.
+   * Counts a hit or a miss.
+   * @param key the given key to look up
+   * @return the cached value of the given key if its lease is still valid, otherwise null
+   */
+  public synchronized String getFresh(String key) {
+    Entry entry = entries.get(key);
+    if (entry != null && System.currentTimeMillis() < entry.leaseExpiry) {
+      hits++;
+      return entry.value;
+    }
+    misses++;
+    return null;
+  }
+
+  /**
+   * Return the version of the cached entry of the given key, or 0 if there is none, so that an
+   * expired entry can be revalidated with the server.
+   * @param key the given key
+   * @return the version of the cached entry of the given key, or 0 if there is none
+   */
+  public synchronized long getVersion(String key) {
+    Entry entry = entries.get(key);
+    return entry == null ? 0 : entry.version;
+  }
+
+  /**
+   * Apply the server's answer to a (conditional) versioned get and return the current value.
+   * A null answer means the key is gone; a null value with the cached version means the cached
+   * value is still current, so its lease is renewed.
+   * @param key the given key
+   * @param answer the server's answer
+   * @return the current value of the given key, or null if the key is not in the store
+   */
+  public synchronized String update(String key, VersionedValue answer) {
+    if (answer == null) {
+      entries.remove(key);
+      return null;
+    }
+
+    long leaseExpiry = System.currentTimeMillis() + leaseMillis;
+    Entry entry = entries.get(key);
+    if (answer.getValue() == null && entry != null && entry.version == answer.getVersion()) {
+      revalidations++;
+      entry.leaseExpiry = leaseExpiry;
+      return entry.value;
+    }
+
+    entries.put(key, new Entry(answer.getValue(), answer.getVersion(), leaseExpiry));
+    return answer.getValue();
+  }
+
+  /**
+   * Drop the cached entry of the given key, e.g. after this client wrote it.
+   * @param key the given key
+   */
+  public synchronized void invalidate(String key) {
+    entries.remove(key);
+  }
+
+  /**
+   * Return a one-line summary of the cache metrics.
+   * @return a one-line summary of the cache metrics
+   */
+  public synchronized String stats() {
+    long lookups = hits + misses;
+    double hitRate = lookups == 0 ? 0 : (double) hits / lookups;
+    return String.format("CACHE - size: %d/%d; hits: %d; misses: %d; hit rate: %.2f; "
+                    + "revalidations: %d; evictions: %d",
+            entries.size(), capacity, hits, misses, hitRate, revalidations, evictions);
+  }
+
+  // A cached value with its version and lease expiry time
+  private static class Entry {
+    private final String value;
+    private final long version;
+    private long leaseExpiry;
+
+    private Entry(String value, long version, long leaseExpiry) {
+      this.value = value;
+      this.version = version;
+      this.leaseExpiry = leaseExpiry;
+    }
+  }
+
+}
@@ -0,0 +1,47 @@
+package client;
+
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+
+import server.WatchListener;
+import utils.KVLogger;
+import utils.KVOperation;
+
+/**
+ * This class represents the client's watch subscriber: it logs every committed operation it is
+ * sent, and remembers the apply sequence of the last one so that a watch can be resumed from there.
+ */
+public class WatchPrinter extends UnicastRemoteObject implements WatchListener {
+  private static final long serialVersionUID = 1l;
+  private static KVLogger logger = new KVLogger("WatchPrinter");
+
+  private volatile long lastSequence;
+
+  public WatchPrinter() throws RemoteException {
+    super();
+  }
+
+  @Override
+  public void onEvents(List<KVOperation> events) {
+    for (KVOperation event : events) {
+      logger.logInfoMessage("; WATCH - " + event.getType() + "; "
+              + "KEY: " + event.getKey() + "; "
+              + (event.getVal() == null ? "" : "VALUE: " + event.getVal() + "; ")
+              + "POSITION: " + event.getPosition());
+      lastSequence = event.getSequence();
+    }
+  }
+
+  @Override
+  public void onTruncated(long truncatedThrough) {
+    logger.logWarningMessage("; WATCH - subscription dropped at sequence " + truncatedThrough
+            + "; please watch again");
+    lastSequence = 0;
+  }
+
+  public long getLastSequence() {
+    return lastSequence;
+  }
+
+}
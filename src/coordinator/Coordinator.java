@@ -6,25 +6,113 @@ import java.util.AbstractMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import utils.KVLogger;
 
 public class Coordinator extends UnicastRemoteObject implements ICoordinator {
-  private static Set<Map.Entry<String, Integer>> serverHostNameToPortNum;
+  // how often servers heartbeat, and how long the coordinator waits before suspecting
+  // and then removing a silent server
+  public static final long HEARTBEAT_INTERVAL_MS = 1000;
+  private static final long SUSPECT_AFTER_MS = 3 * HEARTBEAT_INTERVAL_MS;
+  private static final long REMOVE_AFTER_MS = 10 * HEARTBEAT_INTERVAL_MS;
+
+  private static KVLogger logger = new KVLogger("Coordinator");
+
+  // live servers to the time of their last heartbeat
+  private Map<Map.Entry<String, Integer>, Long> lastHeartbeats;
+  private Set<Map.Entry<String, Integer>> suspects;
+  private long epoch;
+
+  // every server that ever joined; a dead server stays configured, so quorums never shrink
+  private Set<Map.Entry<String, Integer>> configured;
+
+  private ScheduledExecutorService livenessChecker;
 
   public Coordinator() throws RemoteException {
     super();
-    serverHostNameToPortNum = new HashSet<>();
+    lastHeartbeats = new ConcurrentHashMap<>();
+    suspects = ConcurrentHashMap.newKeySet();
+    epoch = 0;
+    configured = ConcurrentHashMap.newKeySet();
+
+    livenessChecker = Executors.newSingleThreadScheduledExecutor();
+    livenessChecker.scheduleAtFixedRate(this::checkLiveness,
+            HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
   }
 
   @Override
-  public void addServer(String hostName, int portNum) {
+  public synchronized boolean addServer(String hostName, int portNum) {
     Map.Entry<String, Integer> entry = new AbstractMap.SimpleEntry<>(hostName, portNum);
-    serverHostNameToPortNum.add(entry);
+    if(clashes(entry)) {
+      return false;
+    }
+    lastHeartbeats.put(entry, System.currentTimeMillis());
+    suspects.remove(entry);
+    configured.add(entry);
+    epoch++;
+    logger.logInfoMessage("Server " + hostName + ":" + portNum + " joined; epoch " + epoch);
+    return true;
+  }
+
+  @Override
+  public synchronized long heartbeat(String hostName, int portNum) {
+    Map.Entry<String, Integer> entry = new AbstractMap.SimpleEntry<>(hostName, portNum);
+    if(!lastHeartbeats.containsKey(entry) && clashes(entry)) {
+      return epoch;
+    }
+    if(lastHeartbeats.put(entry, System.currentTimeMillis()) == null) {
+      configured.add(entry);
+      epoch++;
+      logger.logInfoMessage("Server " + hostName + ":" + portNum + " rejoined; epoch " + epoch);
+    } else if(suspects.remove(entry)) {
+      logger.logInfoMessage("Server " + hostName + ":" + portNum + " is alive again");
+    }
+    return epoch;
   }
 
   @Override
   public Set<Map.Entry<String, Integer>> getServer() {
-    return serverHostNameToPortNum;
+    return new HashSet<>(lastHeartbeats.keySet());
+  }
+
+  @Override
+  public synchronized MembershipView getMembership() {
+    return new MembershipView(epoch, getServer(), configured.size());
   }
 
+  // Helper for checking whether a server's ballot id is taken by another configured server
+  private boolean clashes(Map.Entry<String, Integer> entry) {
+    int serverId = MembershipView.serverId(entry.getKey(), entry.getValue());
+    for(Map.Entry<String, Integer> other : configured) {
+      if(!other.equals(entry) && MembershipView.serverId(other.getKey(), other.getValue()) == serverId) {
+        logger.logErrorMessage("Server " + entry.getKey() + ":" + entry.getValue() + " refused; its ballot id "
+                + serverId + " clashes with " + other.getKey() + ":" + other.getValue());
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Helper for marking silent servers suspect, and removing them after the grace period
+  private synchronized void checkLiveness() {
+    long now = System.currentTimeMillis();
+    for(Map.Entry<Map.Entry<String, Integer>, Long> server : lastHeartbeats.entrySet()) {
+      Map.Entry<String, Integer> entry = server.getKey();
+      long silence = now - server.getValue();
+
+      if(silence >= REMOVE_AFTER_MS) {
+        lastHeartbeats.remove(entry);
+        suspects.remove(entry);
+        epoch++;
+        logger.logWarningMessage("Server " + entry.getKey() + ":" + entry.getValue() + " is dead, removed; epoch " + epoch);
+      } else if(silence >= SUSPECT_AFTER_MS && suspects.add(entry)) {
+        logger.logWarningMessage("Server " + entry.getKey() + ":" + entry.getValue() + " is suspect");
+      }
+    }
+  }
 
 }
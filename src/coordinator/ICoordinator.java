@@ -9,17 +9,40 @@ public interface ICoordinator extends Remote {
 
   /**
    * Add server information.
+   * A server that (re)starts always rejoins through here, which moves the membership epoch.
+   * A server whose ballot id clashes with that of another configured server is refused, since
+   * the two could otherwise propose the same ballot.
    * @param hostName given server host name
    * @param portNum given server port number
+   * @return true if the server joined, false if it was refused
    * @throws RemoteException
    */
-  void addServer(String hostName, int portNum) throws RemoteException;
+  boolean addServer(String hostName, int portNum) throws RemoteException;
 
   /**
-   * Return server information.
-   * @return
+   * Record a liveness heartbeat from a server.
+   * A heartbeat from a server that was removed as dead lets it rejoin the membership, unless its
+   * ballot id clashes with that of another configured server.
+   * @param hostName given server host name
+   * @param portNum given server port number
+   * @return the current membership epoch
+   * @throws RemoteException
+   */
+  long heartbeat(String hostName, int portNum) throws RemoteException;
+
+  /**
+   * Return server information of the live servers, i.e. alive or suspect but not yet removed.
+   * @return the host name to port number entries of the live servers
    * @throws RemoteException
    */
   Set<Map.Entry<String, Integer>> getServer() throws RemoteException;
 
+  /**
+   * Return the live view of the servers together with the membership epoch and the size of the
+   * configured cluster.
+   * @return the live view of the servers together with the membership epoch
+   * @throws RemoteException
+   */
+  MembershipView getMembership() throws RemoteException;
+
 }
@@ -0,0 +1,58 @@
+package coordinator;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class represents the coordinator's live view of the cluster: the servers currently
+ * considered alive or suspect, tagged with the membership epoch, along with the size of the
+ * configured cluster, i.e. every server that ever joined, which Paxos quorums are taken over. The epoch changes whenever a
+ * server joins, rejoins or is removed, so servers can cache anything derived from the view
+ * (e.g. remote references of their peers) until the epoch moves.
+ */
+public class MembershipView implements Serializable {
+  private static final long serialVersionUID = 1l;
+
+  // low bits of a Paxos ballot that hold the proposing server's id, so no two servers share a ballot
+  public static final int SERVER_ID_BITS = 16;
+
+  private long epoch;
+  private Set<Map.Entry<String, Integer>> servers;
+  private int clusterSize;
+
+  public MembershipView(long epoch, Set<Map.Entry<String, Integer>> servers, int clusterSize) {
+    this.epoch = epoch;
+    this.servers = servers;
+    this.clusterSize = clusterSize;
+  }
+
+  public long getEpoch() {
+    return epoch;
+  }
+
+  public Set<Map.Entry<String, Integer>> getServers() {
+    return servers;
+  }
+
+  public int size() {
+    return servers.size();
+  }
+
+  public int getClusterSize() {
+    return clusterSize;
+  }
+
+  /**
+   * Return the id a server stamps into the low bits of its ballots. It is derived from the
+   * server's address, so it survives restarts of both the server and the coordinator, and the
+   * coordinator refuses a server whose id clashes with a configured one.
+   * @param hostName the server's host name
+   * @param portNum the server's port number
+   * @return the server's ballot id, below 2^SERVER_ID_BITS
+   */
+  public static int serverId(String hostName, int portNum) {
+    return (hostName + ":" + portNum).hashCode() & ((1 << SERVER_ID_BITS) - 1);
+  }
+
+}
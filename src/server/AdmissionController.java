@@ -0,0 +1,91 @@
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class represents admission control on the server's write path.
+ * At most maxInFlight writes run at once and at most queueCapacity more wait for a slot; a write
+ * arriving at a full queue, or waiting longer than maxWaitMillis, is rejected right away instead
+ * of piling up another blocked RMI thread.
+ */
+public class AdmissionController {
+  private final int maxInFlight;
+  private final int queueCapacity;
+  private final long maxWaitMillis;
+
+  private final Semaphore slots;
+  private final AtomicInteger queued;
+
+  // metrics
+  private final AtomicLong admitted;
+  private final AtomicLong rejected;
+
+  public AdmissionController(int maxInFlight, int queueCapacity, long maxWaitMillis) {
+    this.maxInFlight = maxInFlight;
+    this.queueCapacity = queueCapacity;
+    this.maxWaitMillis = maxWaitMillis;
+    this.slots = new Semaphore(maxInFlight, true);
+    this.queued = new AtomicInteger();
+    this.admitted = new AtomicLong();
+    this.rejected = new AtomicLong();
+  }
+
+  /**
+   * Try to admit a write. Return true if it may run, in which case release() must be called
+   * once it is done, or false if the server is overloaded.
+   * @return true if the write may run, false if it is rejected
+   */
+  public boolean tryAdmit() {
+    if (slots.tryAcquire()) {
+      admitted.incrementAndGet();
+      return true;
+    }
+
+    if (queued.incrementAndGet() > queueCapacity) {
+      queued.decrementAndGet();
+      rejected.incrementAndGet();
+      return false;
+    }
+
+    try {
+      if (slots.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+        admitted.incrementAndGet();
+        return true;
+      }
+      rejected.incrementAndGet();
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      rejected.incrementAndGet();
+      return false;
+    } finally {
+      queued.decrementAndGet();
+    }
+  }
+
+  /**
+   * Release the slot of an admitted write.
+   */
+  public void release() {
+    slots.release();
+  }
+
+  /**
+   * Return the admission metrics: queue depth, writes in flight, admitted and rejected counts.
+   * @return the admission metrics by name
+   */
+  public Map<String, Long> getMetrics() {
+    Map<String, Long> metrics = new LinkedHashMap<>();
+    metrics.put("admission.queueDepth", (long) queued.get());
+    metrics.put("admission.inFlight", (long) (maxInFlight - slots.availablePermits()));
+    metrics.put("admission.admitted", admitted.get());
+    metrics.put("admission.rejected", rejected.get());
+    return metrics;
+  }
+
+}
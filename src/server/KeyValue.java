@@ -2,10 +2,14 @@ package server;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 import java.util.Map;
 
 import coordinator.ICoordinator;
 import utils.KVOperation;
+import utils.KVSnapshot;
+import utils.PaxosResponse;
+import utils.VersionedValue;
 
 /**
  * This Interface represents key-value pair operations applied to the Server.
@@ -15,15 +19,32 @@ public interface KeyValue extends Remote {
 
   /**
    * Insert a Key-Value pair to the storage.
-   * Return true if it is agreed by all the peers, otherwise return false.
+   * Return the code to specify the put operation status.
+   * For the current version:
+   * return 200: put successfully
+   * return 500: all peers don't agree
+   * return 503: server overloaded, retry after a while
    *
    * NOTICE: Putting in an already-in-the-store key with a new value will override the old value
    * @param key the unique identifier of the key value pair to be inserted
    * @param value the value of the unique identifier key to be inserted
-   * @return true if it is agreed by all the peers, otherwise return false
+   * @return the corresponding code to specify the put operation status
+   * @throws RemoteException
+   */
+  int put(String key, String value) throws RemoteException;
+
+  /**
+   * Insert a Key-Value pair to the storage that expires after the given TTL.
+   * The expiry time is agreed by the peers along with the value. An expired key is hidden from
+   * reads right away and deleted in the background by a batched purge.
+   * Return the same codes as put(key, value), or 400 if the TTL is negative.
+   * @param key the unique identifier of the key value pair to be inserted
+   * @param value the value of the unique identifier key to be inserted
+   * @param ttlMillis the time to live in milliseconds, 0 for never expiring, never negative
+   * @return the corresponding code to specify the put operation status
    * @throws RemoteException
    */
-  boolean put(String key, String value) throws RemoteException;
+  int put(String key, String value, long ttlMillis) throws RemoteException;
 
   /**
    * Return the value of the given key, otherwise return null if the given key is not in the store
@@ -33,18 +54,101 @@ public interface KeyValue extends Remote {
    */
   String get(String key) throws RemoteException;
 
+  /**
+   * Open a read snapshot of everything applied so far and return its id.
+   * Reads through the snapshot see the store exactly as of that moment, whatever is committed
+   * afterwards, including late commits of lower ballots, and values with a TTL expire as of the
+   * moment it was opened. The snapshot stays open while it is read, and is closed by closeSnapshot or
+   * after being idle for the read snapshot lease.
+   * @return the id of the new read snapshot
+   * @throws RemoteException
+   */
+  long openSnapshot() throws RemoteException;
+
+  /**
+   * Close a read snapshot, so that the old versions only it could see can be garbage-collected.
+   * @param snapshotId the id of the read snapshot
+   * @throws RemoteException
+   */
+  void closeSnapshot(long snapshotId) throws RemoteException;
+
+  /**
+   * Return the value of the given key as of the given read snapshot, otherwise return null if
+   * the key was not in the store at that point.
+   * @param key the given key to get
+   * @param snapshotId the id of an open read snapshot
+   * @return the value of the given key as of the read snapshot, or null if it was not in the store
+   * @throws RemoteException
+   * @throws IllegalArgumentException if the snapshot is unknown, closed or expired
+   */
+  String get(String key, long snapshotId) throws RemoteException;
+
+  /**
+   * Return the values of the given keys as of the given read snapshot, all from the same point
+   * in time. Keys that were not in the store at that point are left out.
+   * @param keys the given keys to get
+   * @param snapshotId the id of an open read snapshot
+   * @return the values of the given keys as of the read snapshot, by key
+   * @throws RemoteException
+   * @throws IllegalArgumentException if the snapshot is unknown, closed or expired
+   */
+  Map<String, String> multiGet(List<String> keys, long snapshotId) throws RemoteException;
+
+  /**
+   * Subscribe to the committed operations on keys starting with keyOrPrefix ("" for every key),
+   * streamed to the listener in the order this server applied them and in batches, starting
+   * after fromSequence. A subscriber that reconnects to the same server resumes from the sequence
+   * of the last event it received; sequences start over when the server restarts, so a
+   * fromSequence past the end of the server's log is dropped through onTruncated right away. A
+   * subscriber that lags too far behind, or does not return from a callback in time, is dropped
+   * through onTruncated as well.
+   * @param keyOrPrefix the key or key prefix to watch
+   * @param fromSequence the apply sequence to stream after, e.g. getLogSequence() for new commits only
+   * @param listener the subscriber to call back
+   * @return the subscription id, for unwatch
+   * @throws RemoteException
+   */
+  long watch(String keyOrPrefix, long fromSequence, WatchListener listener) throws RemoteException;
+
+  /**
+   * Cancel a watch subscription.
+   * @param subscriptionId the subscription id returned by watch
+   * @throws RemoteException
+   */
+  void unwatch(long subscriptionId) throws RemoteException;
+
+  /**
+   * Return the value of the given key with its version, for clients that cache values.
+   * If knownVersion is still the key's current version, the returned value is null ("not
+   * modified") so that an unchanged value is not sent again.
+   * @param key the given key to get
+   * @param knownVersion the version the caller already holds, or 0 if none
+   * @return the versioned value, a versioned null if knownVersion is current, or null if the
+   * given key is not in the store
+   * @throws RemoteException
+   */
+  VersionedValue getVersioned(String key, long knownVersion) throws RemoteException;
+
   /**
    * Return the code to specify the delete operation status.
    * For the current version:
    * return 404: key not found
    * return 200: delete successfully
    * return 500: all peers don't agree
+   * return 503: server overloaded, retry after a while
    * @param key given key to be deleted
    * @return the corresponding code to specify the delete operation status
    * @throws RemoteException
    */
   int delete(String key) throws RemoteException;
 
+  /**
+   * Return the server's metrics by name, e.g. the admission queue depth.
+   * @return the server's metrics by name
+   * @throws RemoteException
+   */
+  Map<String, Long> getMetrics() throws RemoteException;
+
   /**
    * Get the port number of the server.
    * @return the port number of the server
@@ -63,26 +167,24 @@ public interface KeyValue extends Remote {
   /**
    * Call the promise method in the Acceptor.
    * Acceptor is an inner util class in KeyValue Impl class --- KeyValueStore.
-   * Return true for a majority of acceptors agreed to promise, return false for a majority of
-   * acceptors don't agree to promise, and otherwise return null for not responding.
+   * Return a granted response if the acceptor promises the proposal, a rejected response carrying
+   * the acceptor's highest promised ballot otherwise, and null for not responding.
    * @param proposalId given proposalId by proposer
-   * @return true for a majority of acceptors agreed to promise, return false for a majority of
-   * acceptors don't agree to promise, and otherwise return null for not responding
+   * @return the acceptor's response with its highest promised ballot, or null for not responding
    * @throws RemoteException
    */
-  Boolean doPromise(int proposalId) throws RemoteException;
+  PaxosResponse doPromise(long proposalId) throws RemoteException;
 
   /**
    * Call the accept method in the Acceptor.
    * Acceptor is an inner util class in KeyValue Impl class --- KeyValueStore.
-   * Return true for a majority of acceptors agreed to accept, return false for a majority of
-   * acceptors don't agree to accept, and otherwise return null for not responding.
+   * Return a granted response if the acceptor accepts the proposal, a rejected response carrying
+   * the acceptor's highest promised ballot otherwise, and null for not responding.
    * @param proposalId given proposalId by proposer
-   * @return true for a majority of acceptors agreed to accept, return false for a majority of
-   * acceptors don't agree to accept, and otherwise return null for not responding
+   * @return the acceptor's response with its highest promised ballot, or null for not responding
    * @throws RemoteException
    */
-  Boolean doAccept(int proposalId) throws RemoteException;
+  PaxosResponse doAccept(long proposalId) throws RemoteException;
 
   /**
    * Call the learn method in the Learner.
@@ -96,6 +198,8 @@ public interface KeyValue extends Remote {
 
   /**
    * Restart the down server.
+   * Replay only the peer's log tail when it still reaches back to this server's log position,
+   * otherwise copy the peer's data store and then replay the tail.
    * @param peerPortNum given peer(live) port number
    * @param peerHostName given peer(live) host name
    * @throws RemoteException
@@ -103,13 +207,60 @@ public interface KeyValue extends Remote {
   void reStart(int peerPortNum, String peerHostName) throws RemoteException;
 
   /**
-   * Get and Copy the data store from the current live server,
+   * Recover the down server from its own last snapshot on disk.
+   * Fetch only the operations committed after the snapshot, in parallel from the live peers of
+   * the coordinator's membership, falling back to reStart() from a peer if their logs no longer
+   * reach back to the snapshot.
+   * @throws RemoteException
+   */
+  void recover() throws RemoteException;
+
+  /**
+   * Return the highest log position this server has committed.
+   * A copy of the data store taken after this call, plus the operations after this position,
+   * rebuilds the server's state.
+   * @return the highest log position this server has committed
+   * @throws RemoteException
+   */
+  long getLogPosition() throws RemoteException;
+
+  /**
+   * Return the apply sequence number of the last operation this server has applied.
+   * Unlike log positions, sequences are local to the server and follow the order it applied the
+   * commits in, so they are what watch subscriptions stream by.
+   * @return the apply sequence number of the last operation this server has applied
+   * @throws RemoteException
+   */
+  long getLogSequence() throws RemoteException;
+
+  /**
+   * Return up to maxCount committed operations after the given log position, in order,
+   * for a lagging or restarting peer to replay.
+   * Return null if the log has been truncated behind a snapshot past that position, in which
+   * case the peer has to copy the data store first.
+   * @param position the log position to read after
+   * @param maxCount the maximum number of operations to return
+   * @return up to maxCount operations after the given position, or null if already truncated
+   * @throws RemoteException
+   */
+  List<KVOperation> getOperationsSince(long position, int maxCount) throws RemoteException;
+
+  /**
+   * Get and Copy one chunk of the data store from the current live server,
    * for restarting the server by the peer.
-   * Being called in reStart().
-   * @return the copy data store from the current live server
+   * Being called in reStart(), starting from a null key and following each chunk's resume cursor
+   * until the last chunk. The first chunk opens a read snapshot that every later chunk is read
+   * from, so the copy is consistent as of one point in time; the last chunk closes it.
+   * @param snapshotId the read snapshot of the copy from the previous chunk, or 0 for the first chunk
+   * @param fromKey the key to resume the copy from, or null to start from the first key
+   * @param fromOffset the offset into fromKey's value to resume the copy from
+   * @param fromVersion the version of fromKey's value the offset refers to; a value overwritten
+   *                    since is sent again from offset 0 under its new version
+   * @return the next chunk of the copy data store from the current live server
    * @throws RemoteException
+   * @throws IllegalArgumentException if the read snapshot has expired, the copy has to start over
    */
-  Map<String, String> copyDataStore() throws RemoteException;
+  KVSnapshot copyDataStore(long snapshotId, String fromKey, int fromOffset, long fromVersion) throws RemoteException;
 
 }
 
@@ -1,43 +1,89 @@
 package server;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.net.MalformedURLException;
+import java.nio.file.Paths;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import coordinator.ICoordinator;
+import coordinator.MembershipView;
+import utils.KVConfig;
 import utils.KVLogger;
 import utils.KVOperation;
+import utils.KVSnapshot;
+import utils.PaxosResponse;
+import utils.VersionedValue;
 
 public class KeyValueStore extends UnicastRemoteObject implements KeyValue, Serializable {
   private static final long serialVersionUID = 1l;
 
+  // operations sent per getOperationsSince call when a peer replays the log tail
+  private static final int LOG_BATCH_SIZE = 1000;
+
+  // delay before a recovered server fetches the commits that raced its registry binding,
+  // long enough for the peers' failure detectors to probe it again
+  private static final long RECOVERY_RECHECK_MS = 2000;
+
+  // how far below the highest position a commit of another proposer may still arrive, in ballot
+  // units: a ballot's round in milliseconds sits above the server id bits
+  private static final long REORDER_WINDOW = KVConfig.SNAPSHOT_REORDER_WINDOW_MS << MembershipView.SERVER_ID_BITS;
+
   // server fields
   private long maxId;
   private int portNum;
   private String hostName;
 
-  // for key value store
-  private Map<String, String> dictionary;
+  // for key value store, multi-versioned by the ballot that committed each value
+  private MultiVersionStore dictionary;
+
+  // committed operations since the last snapshot, and the snapshot on disk
+  private OperationLog log;
+  private SnapshotFile snapshotFile;
+  private ScheduledExecutorService maintenance;
+  // apply sequence of the log covered by the snapshot on disk
+  private long snapshotSequence;
+
+  // key expirations, and the expired keys waiting for a replicated purge
+  private TimingWheel expirations;
+  private Set<String> pendingPurge;
+
+  // change feed subscriptions, streamed from the log
+  private WatchHub watchHub;
+
+  // bounds the writes waiting behind the proposer
+  private AdmissionController admission;
 
   // for logging
   private KVLogger logger;
 
+  // for calling peers with adaptive deadlines
+  private PeerFailureDetector failureDetector;
+  private ExecutorService rpcExecutor;
+
+  // remote references of the peers, valid as long as the membership epoch does not move
+  private Map<String, KeyValue> peerCache;
+  private long peerCacheEpoch;
+
   // for paxos roles
   private KeyValueStore.Proposer proposer;
   private KeyValueStore.Acceptor acceptor;
@@ -47,47 +93,72 @@ public class KeyValueStore extends UnicastRemoteObject implements KeyValue, Seri
     this.maxId = 0;
     this.portNum = portNum;
     this.hostName = hostName;
-    this.dictionary = new HashMap<>();
+    this.dictionary = new MultiVersionStore(KVConfig.READ_SNAPSHOT_LEASE_MS, REORDER_WINDOW);
     this.logger = new KVLogger("KeyValueStore");
+    this.failureDetector = new PeerFailureDetector();
+    this.rpcExecutor = Executors.newCachedThreadPool();
+    this.peerCache = new ConcurrentHashMap<>();
+    this.peerCacheEpoch = -1;
     this.proposer = new KeyValueStore.Proposer();
     this.acceptor = new KeyValueStore.Acceptor();
     this.learner = new KeyValueStore.Learner();
+    this.admission = new AdmissionController(KVConfig.ADMISSION_MAX_IN_FLIGHT,
+            KVConfig.ADMISSION_QUEUE_CAPACITY, KVConfig.ADMISSION_MAX_WAIT_MS);
+    this.log = new OperationLog(0);
+    this.expirations = new TimingWheel(KVConfig.TTL_TICK_MS, KVConfig.TTL_WHEEL_SIZE);
+    this.pendingPurge = ConcurrentHashMap.newKeySet();
+    this.watchHub = new WatchHub((sequence, maxCount) -> log.afterSequence(sequence, maxCount),
+            () -> log.lastSequence(), KVConfig.WATCH_BATCH_SIZE, KVConfig.WATCH_MAX_LAG, KVConfig.WATCH_CALL_TIMEOUT_MS);
+    this.snapshotFile = new SnapshotFile(Paths.get(KVConfig.SNAPSHOT_DIR, "snapshot-" + portNum + ".snap"));
+    this.maintenance = Executors.newSingleThreadScheduledExecutor();
+    scheduleMaintenance("Snapshot", this::takeSnapshot, KVConfig.SNAPSHOT_INTERVAL_MS);
+    scheduleMaintenance("Version GC", () -> dictionary.collect(), KVConfig.VERSION_GC_INTERVAL_MS);
+    scheduleMaintenance("Expiry", this::expireKeys, KVConfig.TTL_TICK_MS);
   }
 
-  @Override
-  public boolean put(String key, String value) throws RemoteException {
-    int proposalId = generateProposalId();
-    ICoordinator coordinator = getCoordinator();
+  // Helper for running a task on the maintenance executor at a fixed delay. A runtime exception is
+  // logged instead of thrown, as it would cancel every later run of the task
+  private void scheduleMaintenance(String name, Runnable task, long intervalMillis) {
+    maintenance.scheduleWithFixedDelay(() -> {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        logger.logErrorMessage(name + " failed: " + e);
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
 
-    boolean isPutAgreed = proposer.propose(proposalId, coordinator);
+  @Override
+  public int put(String key, String value) throws RemoteException {
+    return put(key, value, 0);
+  }
 
-    if(isPutAgreed) {
-      List<KeyValue> learners = new ArrayList<>();
+  @Override
+  public int put(String key, String value, long ttlMillis) throws RemoteException {
+    if(ttlMillis < 0) {
+      logger.logWarningMessage("Response => code: 400; message: negative TTL, PUT rejected");
+      return 400;
+    }
+    if(!admission.tryAdmit()) {
+      logger.logWarningMessage("Response => code: 503; message: overloaded, PUT rejected");
+      return 503;
+    }
 
-      for(Map.Entry<String, Integer> server : coordinator.getServer()) {
-        int port = server.getValue();
-        String hostName = server.getKey();
-        try {
-          KeyValue peer = (KeyValue) Naming.lookup("rmi://" + hostName + ":" + port + "/KeyValueService");
-          learners.add(peer);
+    try {
+      MembershipView membership = getCoordinator().getMembership();
 
-        } catch (Exception e) {
-          e.printStackTrace();
-          logger.logErrorMessage("Server " + port + " crashed!");
-        }
-      }
+      long ballot = proposer.propose(membership);
 
-      KVOperation put = new KVOperation(KVOperation.Type.PUT, key, value);
+      if(ballot > 0) {
+        long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+        KVOperation put = new KVOperation(KVOperation.Type.PUT, key, value, ballot, expiresAt);
+        return commit(put, membership) ? 200 : 500;
 
-      boolean isPut = false;
-      for(KeyValue learner : learners) {
-        isPut = learner.doCommit(put);
+      } else {
+        return 500;
       }
-
-      return isPut;
-
-    } else {
-      return false;
+    } finally {
+      admission.release();
     }
 
   }
@@ -96,13 +167,14 @@ public class KeyValueStore extends UnicastRemoteObject implements KeyValue, Seri
   public String get(String key) {
     logger.logInfoMessage("REQUEST - GET; KEY => " + key);
 
-    if(!dictionary.containsKey(key)) {
+    VersionedValue versioned = dictionary.get(key);
+    if(versioned == null) {
       logger.logWarningMessage("Response => code: 404; "
               + "message: key not found");
       return null;
     }
 
-    String val = dictionary.get(key);
+    String val = versioned.getValue();
     logger.logInfoMessage("Response => code: 200; "
             + "message: " + val);
 
@@ -110,40 +182,86 @@ public class KeyValueStore extends UnicastRemoteObject implements KeyValue, Seri
   }
 
   @Override
-  public int delete(String key) throws RemoteException {
-    int proposalId = generateProposalId();
-    ICoordinator coordinator = getCoordinator();
-    boolean isDeletedAgreed = proposer.propose(proposalId, coordinator);
+  public long openSnapshot() {
+    return dictionary.openSnapshot();
+  }
 
-    if(isDeletedAgreed) {
-      List<KeyValue> learners = new ArrayList<>();
+  @Override
+  public void closeSnapshot(long snapshotId) {
+    dictionary.closeSnapshot(snapshotId);
+  }
 
-      for(Map.Entry<String, Integer> server : coordinator.getServer()) {
-        int port = server.getValue();
-        String hostName = server.getKey();
-        try {
-          KeyValue peer = (KeyValue) Naming.lookup("rmi://" + hostName + ":" + port + "/KeyValueService");
-          learners.add(peer);
+  @Override
+  public String get(String key, long snapshotId) {
+    VersionedValue versioned = dictionary.getAt(key, snapshotId);
+    return versioned == null ? null : versioned.getValue();
+  }
 
-        } catch (Exception e) {
-          logger.logErrorMessage("Server " + port + " crashed!");
-        }
+  @Override
+  public Map<String, String> multiGet(List<String> keys, long snapshotId) {
+    Map<String, String> values = new LinkedHashMap<>();
+    for(String key : keys) {
+      VersionedValue versioned = dictionary.getAt(key, snapshotId);
+      if(versioned != null) {
+        values.put(key, versioned.getValue());
       }
+    }
+    return values;
+  }
 
-      KVOperation delete = new KVOperation(KVOperation.Type.DELETE, key, null);
+  @Override
+  public long watch(String keyOrPrefix, long fromSequence, WatchListener listener) {
+    return watchHub.watch(keyOrPrefix, fromSequence, listener);
+  }
 
-      boolean isDeleted = false;
-      for(KeyValue learner : learners) {
-        isDeleted = learner.doCommit(delete);
-      }
+  @Override
+  public void unwatch(long subscriptionId) {
+    watchHub.unwatch(subscriptionId);
+  }
+
+  @Override
+  public VersionedValue getVersioned(String key, long knownVersion) {
+    VersionedValue versioned = dictionary.get(key);
+    if(versioned == null) {
+      return null;
+    }
 
-      return isDeleted ? 200 : 404;
+    if(versioned.getVersion() == knownVersion) {
+      // not modified, spare sending the value again
+      return new VersionedValue(null, knownVersion);
+    }
+    return versioned;
+  }
 
-    } else {
-      return 500;
+  @Override
+  public int delete(String key) throws RemoteException {
+    if(!admission.tryAdmit()) {
+      logger.logWarningMessage("Response => code: 503; message: overloaded, DELETE rejected");
+      return 503;
     }
 
+    try {
+      MembershipView membership = getCoordinator().getMembership();
+      long ballot = proposer.propose(membership);
+
+      if(ballot > 0) {
+        KVOperation delete = new KVOperation(KVOperation.Type.DELETE, key, null, ballot);
+        boolean isDeleted = commit(delete, membership);
+
+        return isDeleted ? 200 : 404;
 
+      } else {
+        return 500;
+      }
+    } finally {
+      admission.release();
+    }
+
+  }
+
+  @Override
+  public Map<String, Long> getMetrics() {
+    return admission.getMetrics();
   }
 
   @Override
@@ -163,12 +281,12 @@ public class KeyValueStore extends UnicastRemoteObject implements KeyValue, Seri
   }
 
   @Override
-  public Boolean doPromise(int proposalId) throws RemoteException {
+  public PaxosResponse doPromise(long proposalId) throws RemoteException {
     return this.acceptor.promise(proposalId);
   }
 
   @Override
-  public Boolean doAccept(int proposalId) throws RemoteException {
+  public PaxosResponse doAccept(long proposalId) throws RemoteException {
     return this.acceptor.accept(proposalId);
   }
 
@@ -181,7 +299,56 @@ public class KeyValueStore extends UnicastRemoteObject implements KeyValue, Seri
   public void reStart(int peerPortNum, String peerHostName) throws RemoteException {
     try {
       KeyValue peer = (KeyValue) Naming.lookup("rmi://" + peerHostName + ":" + peerPortNum + "/KeyValueService");
-      dictionary = peer.copyDataStore();
+
+      if(replayTail(peer)) {
+        logger.logInfoMessage("Restart success from server: " + peerPortNum + "; replayed log tail only");
+        return;
+      }
+
+      // the peer's log no longer reaches back far enough: copy its store, then replay the tail.
+      // Commits of lower ballots may still reach the peer after the copy has read their keys, so the
+      // tail is replayed from the reorder window below the peer's position, as applying an
+      // operation twice changes nothing. Should the peer truncate its log past that meanwhile, the
+      // copy is taken again
+      for(;;) {
+        long position = peer.getLogPosition();
+        MultiVersionStore copy = new MultiVersionStore(KVConfig.READ_SNAPSHOT_LEASE_MS, REORDER_WINDOW);
+
+        // pull the copy chunk by chunk from one read snapshot of the peer, joining values that were
+        // split across chunks; a split value overwritten in between comes again from offset 0
+        // under its new version, and replaces the head
+        long snapshotId = 0;
+        String fromKey = null;
+        int fromOffset = 0;
+        long fromVersion = 0;
+        KVSnapshot chunk;
+        do {
+          chunk = peer.copyDataStore(snapshotId, fromKey, fromOffset, fromVersion);
+          for(Map.Entry<String, VersionedValue> kvPair : chunk.getEntries().entrySet()) {
+            VersionedValue part = kvPair.getValue();
+            VersionedValue head = copy.get(kvPair.getKey());
+            if(fromOffset > 0 && kvPair.getKey().equals(fromKey) && part.getVersion() == fromVersion && head != null) {
+              copy.put(fromKey, head.getValue() + part.getValue(), part.getVersion(), part.getExpiresAt());
+            } else {
+              copy.put(kvPair.getKey(), part.getValue(), part.getVersion(), part.getExpiresAt());
+            }
+          }
+          snapshotId = chunk.getSnapshotId();
+          fromKey = chunk.getResumeKey();
+          fromOffset = chunk.getResumeOffset();
+          fromVersion = chunk.getResumeVersion();
+        } while(!chunk.isLast());
+
+        dictionary = copy;
+        scheduleExpirations(copy);
+        log = new OperationLog(Math.max(0, position - REORDER_WINDOW));
+        snapshotSequence = 0;
+        watchHub.logReplaced();
+        if(replayTail(peer)) {
+          break;
+        }
+        logger.logWarningMessage("Log of server " + peerPortNum + " truncated during the copy, copying again");
+      }
       logger.logInfoMessage("Restart success from server: " + peerPortNum);
     } catch (Exception e) {
       logger.logErrorMessage("Restart failed from server: " + peerPortNum);
@@ -189,20 +356,428 @@ public class KeyValueStore extends UnicastRemoteObject implements KeyValue, Seri
   }
 
   @Override
-  public Map<String, String> copyDataStore() {
-    Map<String, String> copy = new HashMap<>();
-    for(Map.Entry<String, String> kvPair : dictionary.entrySet()) {
-      copy.put(kvPair.getKey(), kvPair.getValue());
+  public void recover() throws RemoteException {
+    if(snapshotFile.exists()) {
+      MultiVersionStore loaded = new MultiVersionStore(KVConfig.READ_SNAPSHOT_LEASE_MS, REORDER_WINDOW);
+      try {
+        long position = snapshotFile.read(loaded);
+        dictionary = loaded;
+        scheduleExpirations(loaded);
+        log = new OperationLog(position);
+        snapshotSequence = 0;
+        watchHub.logReplaced();
+        logger.logInfoMessage("Snapshot loaded at log position " + position);
+      } catch (IOException e) {
+        logger.logWarningMessage("Snapshot could not be loaded, recovering from peers only: " + e.getMessage());
+      }
+    }
+
+    Map<String, KeyValue> peers = lookupPeers(getCoordinator().getMembership());
+    peers.remove(hostName + ":" + portNum);
+    if(peers.isEmpty()) {
+      logger.logWarningMessage("No live peer to catch up from, recovered from the snapshot only");
+      return;
+    }
+
+    // catch up until a round brings in less than a batch, what follows arrives as regular commits
+    int learned;
+    do {
+      learned = catchUp(peers, log.lastPosition());
+    } while(learned >= LOG_BATCH_SIZE);
+
+    if(learned < 0) {
+      // the peers' logs no longer reach back to the snapshot: copy a peer's store instead
+      String address = peers.keySet().iterator().next();
+      int separator = address.lastIndexOf(':');
+      reStart(Integer.parseInt(address.substring(separator + 1)), address.substring(0, separator));
+      return;
+    }
+
+    // commits that raced the registry binding are fetched from where the last round got to: the
+    // regular commits coming in once bound move the log position past them
+    long reached = log.lastPosition();
+    maintenance.schedule(() -> catchUp(peers, reached), RECOVERY_RECHECK_MS, TimeUnit.MILLISECONDS);
+    logger.logInfoMessage("Recovery success at log position " + log.lastPosition()
+            + "; caught up from " + peers.size() + " peers");
+  }
+
+  @Override
+  public long getLogPosition() {
+    return log.lastPosition();
+  }
+
+  @Override
+  public long getLogSequence() {
+    return log.lastSequence();
+  }
+
+  @Override
+  public List<KVOperation> getOperationsSince(long position, int maxCount) {
+    return log.since(position, maxCount);
+  }
+
+  @Override
+  public KVSnapshot copyDataStore(long snapshotId, String fromKey, int fromOffset, long fromVersion) {
+    // the whole copy is read from one read snapshot, opened with the first chunk
+    long readId = snapshotId == 0 ? dictionary.openSnapshot() : snapshotId;
+    Map<String, VersionedValue> entries = new LinkedHashMap<>();
+    int budget = KVSnapshot.CHUNK_SIZE;
+
+    for(Map.Entry<String, VersionedValue> kvPair : dictionary.entriesAt(readId, fromKey)) {
+      String key = kvPair.getKey();
+      String value = kvPair.getValue().getValue();
+      long version = kvPair.getValue().getVersion();
+      long expiresAt = kvPair.getValue().getExpiresAt();
+
+      if(budget <= 0) {
+        return new KVSnapshot(readId, entries, key, 0, version);
+      }
+
+      // resume inside a value split by the previous chunk, unless it has since been overwritten:
+      // then it is sent again from offset 0 under its new version, which the receiver replaces
+      int start = key.equals(fromKey) && version == fromVersion && fromOffset <= value.length() ? fromOffset : 0;
+      int remaining = value.length() - start;
+
+      if(remaining > 0 && remaining + key.length() > budget) {
+        if(!entries.isEmpty()) {
+          return new KVSnapshot(readId, entries, key, start, version);
+        }
+        // a single value bigger than a chunk is split across several chunks
+        int end = start + Math.max(1, budget - key.length());
+        // never cut a surrogate pair, each half alone does not survive the UTF-8 encoding
+        if(Character.isHighSurrogate(value.charAt(end - 1))) {
+          end = end - start > 1 ? end - 1 : end + 1;
+        }
+        entries.put(key, new VersionedValue(value.substring(start, end), version, expiresAt));
+        return new KVSnapshot(readId, entries, key, end, version);
+      }
+
+      entries.put(key, new VersionedValue(value.substring(start), version, expiresAt));
+      budget -= remaining + key.length();
+    }
+
+    dictionary.closeSnapshot(readId);
+    return new KVSnapshot(0, entries, null, 0, 0);
+  }
+
+  // Helper for replaying the peer's committed operations after this server's log position,
+  // return false if the peer's log has been truncated past it
+  private boolean replayTail(KeyValue peer) throws RemoteException {
+    List<KVOperation> tail;
+    do {
+      tail = peer.getOperationsSince(log.lastPosition(), LOG_BATCH_SIZE);
+      if(tail == null) {
+        return false;
+      }
+      for(KVOperation operation : tail) {
+        learner.learn(operation);
+      }
+    } while(tail.size() == LOG_BATCH_SIZE);
+    return true;
+  }
+
+  // Helper for fetching the operations committed after the given position from the given
+  // peers in parallel. The gap up to the furthest peer is split into one position range per peer,
+  // and every range is fetched only from peers that reported a position at or past its end, as a
+  // lagging peer would send it short. A range its peer fails to send is fetched from the other
+  // such peers, and the ranges are learned in order.
+  // Return the number of operations learned, or -1 if some range could not be fetched from anyone
+  private int catchUp(Map<String, KeyValue> peers, long from) {
+    long target = from;
+
+    Map<String, Future<Long>> positions = new LinkedHashMap<>();
+    for(Map.Entry<String, KeyValue> peer : peers.entrySet()) {
+      KeyValue source = peer.getValue();
+      positions.put(peer.getKey(), callPeer(peer.getKey(), () -> source.getLogPosition()));
+    }
+    Map<KeyValue, Long> reported = new LinkedHashMap<>();
+    for(Map.Entry<String, Future<Long>> position : positions.entrySet()) {
+      Long peerPosition = awaitPeer(position.getKey(), position.getValue());
+      if(peerPosition != null) {
+        reported.put(peers.get(position.getKey()), peerPosition);
+        target = Math.max(target, peerPosition);
+      }
+    }
+    if(target <= from) {
+      return 0;
+    }
+
+    List<KeyValue> sources = new ArrayList<>(reported.keySet());
+    long width = (target - from + sources.size() - 1) / sources.size();
+    List<List<KeyValue>> owners = new ArrayList<>();
+    List<Future<List<KVOperation>>> ranges = new ArrayList<>();
+    for(int i = 0; i < sources.size() && from + i * width < target; i++) {
+      long start = from + i * width;
+      long end = Math.min(target, start + width);
+
+      // the peers that have reached the end of the range, starting with the i-th
+      List<KeyValue> candidates = new ArrayList<>();
+      for(int j = 0; j < sources.size(); j++) {
+        KeyValue source = sources.get((i + j) % sources.size());
+        if(reported.get(source) >= end) {
+          candidates.add(source);
+        }
+      }
+      owners.add(candidates);
+
+      KeyValue owner = candidates.get(0);
+      ranges.add(rpcExecutor.submit(() -> fetchRange(owner, start, end)));
+    }
+
+    int learned = 0;
+    for(int i = 0; i < ranges.size(); i++) {
+      long start = from + i * width;
+      long end = Math.min(target, start + width);
+
+      List<KVOperation> range;
+      try {
+        range = ranges.get(i).get(KVConfig.RECOVERY_FETCH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException | ExecutionException e) {
+        ranges.get(i).cancel(true);
+        range = null;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return -1;
+      }
+
+      List<KeyValue> candidates = owners.get(i);
+      for(int j = 1; range == null && j < candidates.size(); j++) {
+        try {
+          range = fetchRange(candidates.get(j), start, end);
+        } catch (RemoteException e) {
+          range = null;
+        }
+      }
+      if(range == null) {
+        logger.logWarningMessage("Catch-up failed: no peer sent the operations after position " + start);
+        return -1;
+      }
+
+      for(KVOperation operation : range) {
+        learner.learn(operation);
+      }
+      learned += range.size();
+    }
+    return learned;
+  }
+
+  // Helper for fetching a peer's committed operations in the position range (from, through],
+  // return null if the peer's log has been truncated past from
+  private List<KVOperation> fetchRange(KeyValue peer, long from, long through) throws RemoteException {
+    List<KVOperation> range = new ArrayList<>();
+    List<KVOperation> batch;
+    do {
+      batch = peer.getOperationsSince(from, LOG_BATCH_SIZE);
+      if(batch == null) {
+        return null;
+      }
+      for(KVOperation operation : batch) {
+        if(operation.getPosition() > through) {
+          return range;
+        }
+        range.add(operation);
+        from = operation.getPosition();
+      }
+    } while(batch.size() == LOG_BATCH_SIZE);
+    return range;
+  }
+
+  // Helper for scheduling the expirations of the values of a store loaded from a snapshot or a copy
+  private void scheduleExpirations(MultiVersionStore store) {
+    for(Map.Entry<String, VersionedValue> kvPair : store.entries(null)) {
+      if(kvPair.getValue().getExpiresAt() != 0) {
+        expirations.schedule(kvPair.getKey(), kvPair.getValue().getExpiresAt());
+      }
+    }
+  }
+
+  // Helper for taking a background snapshot of the dictionary and truncating the log behind it.
+  // The dictionary is written from a read snapshot, so learning goes on meanwhile. The file holds
+  // every operation applied up to the log's current apply sequence, and is tagged with the
+  // horizon below which it holds every operation at all; replaying the peers' logs after that
+  // horizon rebuilds the state, as applying an operation twice changes nothing.
+  // Only the operations the file holds are dropped from the log.
+  private void takeSnapshot() {
+    // everything applied up to this sequence is at or below the read position opened next
+    long sequence = log.lastSequence();
+    if(sequence <= snapshotSequence) {
+      return;
+    }
+
+    long snapshotId = dictionary.openSnapshot();
+    try {
+      long position = dictionary.snapshotPosition(snapshotId);
+      // later commits may still carry lower positions, so the file only vouches for the horizon
+      long horizon = log.markSnapshot(sequence, position, REORDER_WINDOW);
+
+      snapshotFile.write(horizon, dictionary.entriesAt(snapshotId, null));
+      snapshotSequence = sequence;
+      // keep the log after the slowest watch subscription
+      log.truncateThrough(Math.min(sequence, watchHub.lowestCursor()), horizon);
+      logger.logInfoMessage("Snapshot taken at log position " + position + "; complete below " + horizon);
+    } catch (IOException e) {
+      logger.logErrorMessage("Snapshot failed: " + e.getMessage());
+    } finally {
+      dictionary.closeSnapshot(snapshotId);
+    }
+  }
+
+  // Helper for moving the expirations that came due to the pending purge set, and, on the
+  // designated purger (the lowest host:port of the membership), proposing one purge for a batch
+  // of them. The other servers keep their pending keys until a purge commits them, so the next
+  // purger takes over if the current one goes down.
+  private void expireKeys() {
+    long now = System.currentTimeMillis();
+    for(Map.Entry<String, Long> due : expirations.advance(now)) {
+      if(dictionary.hasExpired(due.getKey(), now)) {
+        pendingPurge.add(due.getKey());
+      }
+    }
+    if(pendingPurge.isEmpty()) {
+      return;
+    }
+
+    try {
+      ICoordinator coordinator = getCoordinator();
+      if(coordinator == null) {
+        // the keys stay pending until the coordinator is back
+        logger.logWarningMessage("Purge of expired keys postponed: coordinator not reachable");
+        return;
+      }
+      MembershipView membership = coordinator.getMembership();
+      String self = hostName + ":" + portNum;
+      for(Map.Entry<String, Integer> server : membership.getServers()) {
+        if((server.getKey() + ":" + server.getValue()).compareTo(self) < 0) {
+          return;
+        }
+      }
+
+      List<String> batch = new ArrayList<>();
+      for(String key : pendingPurge) {
+        if(batch.size() >= KVConfig.TTL_PURGE_BATCH_SIZE) {
+          break;
+        }
+        batch.add(key);
+      }
+
+      long ballot = proposer.propose(membership);
+      if(ballot > 0) {
+        commit(KVOperation.purge(batch, now, ballot), membership);
+      }
+    } catch (RemoteException e) {
+      logger.logWarningMessage("Purge of expired keys failed: " + e.getMessage());
     }
-    return copy;
   }
 
-  // Helper for generate proposal Id for a new proposal/request-operation
-  private synchronized int generateProposalId() {
-    String s = new SimpleDateFormat("HHmmssSSS").format(new Date());
-    return Integer.parseInt(s);
+  // Helper for sending an agreed operation to every live member, suspected or not, and applying
+  // it to this server in-process; return true if any learner applied it.
+  // Suspicion only thins out the prepare and accept fan-out: a member left out of a commit would
+  // silently lose the write, as nothing repairs it later
+  private boolean commit(KVOperation operation, MembershipView membership) {
+    String self = hostName + ":" + portNum;
+    Map<String, Future<Boolean>> commits = new LinkedHashMap<>();
+    for(Map.Entry<String, KeyValue> peer : lookupMembers(membership).entrySet()) {
+      if(peer.getKey().equals(self)) {
+        continue;
+      }
+      KeyValue learner = peer.getValue();
+      commits.put(peer.getKey(), callPeer(peer.getKey(), () -> learner.doCommit(operation)));
+    }
+
+    boolean isCommitted = learner.learn(operation);
+    for(Map.Entry<String, Future<Boolean>> commit : commits.entrySet()) {
+      Boolean isLearned = awaitPeer(commit.getKey(), commit.getValue());
+      if(isLearned == null) {
+        logger.logWarningMessage("Commit: NOT RESPOND from Learner " + commit.getKey());
+      } else if(isLearned) {
+        isCommitted = true;
+      }
+    }
+    return isCommitted;
+  }
+
+  // Helper for looking up the live peers of the membership view for the prepare and accept
+  // fan-out, skipping the ones the failure detector currently suspects down
+  private Map<String, KeyValue> lookupPeers(MembershipView membership) {
+    Map<String, KeyValue> peers = lookupMembers(membership);
+    peers.keySet().removeIf(address -> {
+      if(failureDetector.shouldSkip(address)) {
+        logger.logWarningMessage("Server " + address + " suspected down, skipped");
+        return true;
+      }
+      return false;
+    });
+    return peers;
+  }
+
+  // Helper for looking up every live member of the membership view, keyed by host:port.
+  // Remote references are cached until the membership epoch moves.
+  private Map<String, KeyValue> lookupMembers(MembershipView membership) {
+    synchronized(peerCache) {
+      if(membership.getEpoch() != peerCacheEpoch) {
+        peerCache.clear();
+        peerCacheEpoch = membership.getEpoch();
+      }
+    }
+
+    Map<String, KeyValue> peers = new LinkedHashMap<>();
+
+    for(Map.Entry<String, Integer> server : membership.getServers()) {
+      int port = server.getValue();
+      String hostName = server.getKey();
+      String address = hostName + ":" + port;
+
+      KeyValue cached = peerCache.get(address);
+      if(cached != null) {
+        peers.put(address, cached);
+        continue;
+      }
+
+      try {
+        KeyValue peer = (KeyValue) Naming.lookup("rmi://" + address + "/KeyValueService");
+        peerCache.put(address, peer);
+        peers.put(address, peer);
+
+      } catch (Exception e) {
+        failureDetector.recordFailure(address);
+        logger.logErrorMessage("Server " + port + " crashed!");
+      }
+    }
+
+    return peers;
   }
 
+  // Helper for starting a remote call to a peer on the rpc executor, timed for the failure detector.
+  // Any reply counts as a response, including the null of a simulated acceptor failure:
+  // the peer is up, it only turned the request down
+  private <T> Future<T> callPeer(String address, Callable<T> call) {
+    return rpcExecutor.submit(() -> {
+      long start = System.currentTimeMillis();
+      T response = call.call();
+      failureDetector.recordSuccess(address, System.currentTimeMillis() - start);
+      return response;
+    });
+  }
+
+  // Helper for waiting on a peer call up to the peer's adaptive deadline,
+  // return null (i.e. not responding) on timeout or failure.
+  // A call past its deadline is left to finish, so a late commit is still delivered
+  private <T> T awaitPeer(String address, Future<T> response) {
+    try {
+      return response.get(failureDetector.deadlineMillis(address), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      failureDetector.recordFailure(address);
+      return null;
+    } catch (ExecutionException e) {
+      // the remote reference may be stale, look it up again next time
+      peerCache.remove(address);
+      failureDetector.recordFailure(address);
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
 
   /**
    * Inner class Proposer - for KeyValue/KeyValueStore(i.e. PAXOS roles for the server)
@@ -210,79 +785,151 @@ public class KeyValueStore extends UnicastRemoteObject implements KeyValue, Seri
   public class Proposer extends UnicastRemoteObject implements Serializable {
     private static final long serialVersionUID = 1l;
 
+    // highest ballot this proposer has used or been told about by a rejecting acceptor
+    private long highestBallot;
+
+    // stamped into the low bits of every ballot, so no two servers ever propose the same ballot
+    private final int serverId;
+
     protected Proposer() throws RemoteException {
       super();
+      this.highestBallot = 0;
+      this.serverId = MembershipView.serverId(hostName, portNum);
     }
 
-    public synchronized boolean propose(int proposalId, ICoordinator coordinator) throws RemoteException {
-      System.out.println("propose method being called");
-      List<KeyValue> acceptors = new ArrayList<>();
+    /**
+     * Run proposal rounds until one is agreed or the proposal deadline passes, and return the
+     * agreed ballot, or 0 if none was agreed. The agreed ballot becomes the operation's position.
+     * A ballot is a round number, at least the current time in milliseconds, with this server's
+     * id in its low bits. Ballots are thus unique across servers, which a phase 1 quorum below a
+     * majority relies on: two proposers can never both be granted the same ballot.
+     * A rejected round jumps straight past the highest ballot reported by the acceptors, and
+     * retries back off for a random time below an exponentially growing bound so that dueling
+     * proposers on different servers stop colliding.
+     */
+    public synchronized long propose(MembershipView membership) {
+      // await the peers expected to answer first, so a round stops as soon as its quorum is in
+      List<Map.Entry<String, KeyValue>> peers = new ArrayList<>(lookupPeers(membership).entrySet());
+      peers.sort(Comparator.comparingLong(peer -> failureDetector.deadlineMillis(peer.getKey())));
+      Map<String, KeyValue> acceptors = new LinkedHashMap<>();
+      for(Map.Entry<String, KeyValue> peer : peers) {
+        acceptors.put(peer.getKey(), peer.getValue());
+      }
 
-      System.out.println("how many number of peers: ");
-      System.out.println(coordinator.getServer().size());
-      for(Map.Entry<String, Integer> server : coordinator.getServer()) {
-        int port = server.getValue();
-        String hostName = server.getKey();
+      // the quorums are taken over the configured cluster, not only the peers that are up
+      int clusterSize = membership.getClusterSize();
+      int phase1Quorum = quorum(KVConfig.QUORUM_PHASE1, clusterSize);
+      int phase2Quorum = quorum(KVConfig.QUORUM_PHASE2, clusterSize);
+      if(phase1Quorum + phase2Quorum <= clusterSize) {
+        logger.logWarningMessage("Quorums " + phase1Quorum + "/" + phase2Quorum + " do not overlap in a cluster of "
+                + clusterSize + "; using majorities");
+        phase1Quorum = clusterSize / 2 + 1;
+        phase2Quorum = clusterSize / 2 + 1;
+      }
 
-        try {
-          KeyValue peer = (KeyValue) Naming.lookup("rmi://" + hostName + ":" + port + "/KeyValueService");
-          acceptors.add(peer);
+      long deadline = System.currentTimeMillis() + KVConfig.PROPOSAL_DEADLINE_MS;
+      for(int attempt = 0; ; attempt++) {
+        long proposalId = generateProposalId();
+        if(runRound(proposalId, acceptors, phase1Quorum, phase2Quorum)) {
+          return proposalId;
+        }
+
+        long backoffBound = Math.min(KVConfig.PROPOSAL_BACKOFF_MAX_MS,
+                KVConfig.PROPOSAL_BACKOFF_BASE_MS << Math.min(attempt, 20));
+        long backoff = ThreadLocalRandom.current().nextLong(backoffBound + 1);
+        if(System.currentTimeMillis() + backoff >= deadline) {
+          logger.logWarningMessage("Proposal gave up after " + (attempt + 1) + " attempts");
+          return 0;
+        }
 
-        } catch (Exception e) {
-          logger.logErrorMessage("Server " + port + " crashed!");
-          continue;
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return 0;
         }
       }
+    }
 
-      int majority = acceptors.size() / 2 + 1;
+    // Helper for resolving a configured quorum size against the cluster size, 0 meaning a majority
+    private int quorum(int configured, int clusterSize) {
+      return configured <= 0 ? clusterSize / 2 + 1 : Math.min(configured, clusterSize);
+    }
 
-      int promisedCount = 0;
+    // Helper for generating a ballot of this server above every ballot it has used or seen
+    private long generateProposalId() {
+      long round = Math.max(System.currentTimeMillis(), (highestBallot >> MembershipView.SERVER_ID_BITS) + 1);
+      highestBallot = (round << MembershipView.SERVER_ID_BITS) | serverId;
+      return highestBallot;
+    }
+
+    // Helper for recording the highest ballot hint carried by an acceptor's response
+    private void observe(PaxosResponse response) {
+      highestBallot = Math.max(highestBallot, response.getHighestBallot());
+    }
+
+    // Helper for running one prepare/accept round with the given ballot
+    private boolean runRound(long proposalId, Map<String, KeyValue> acceptors, int phase1Quorum, int phase2Quorum) {
 
       // PHASE 1: PREPARE
-      for(KeyValue acceptor : acceptors) {
-        try {
-          Boolean isPromised = acceptor.doPromise(proposalId);
-
-          if(isPromised == null) {
-            logger.logWarningMessage("Prepare: NOT RESPOND proposal " + proposalId + " from Acceptor: " + acceptor.getPortNum());
-          } else if(isPromised) {
-            promisedCount++;
-            logger.logInfoMessage("Prepare: PROMISED proposal " + proposalId + " from Acceptor: " + acceptor.getPortNum());
-          } else {
-            logger.logInfoMessage("Prepare: REJECTED proposal " + proposalId + " from Acceptor: " + acceptor.getPortNum());
-          }
-        } catch (Exception e) {
-          logger.logWarningMessage("Prepare: NOT RESPOND from Acceptor " + acceptor.getPortNum());
+      Map<String, Future<PaxosResponse>> promises = new LinkedHashMap<>();
+      for(Map.Entry<String, KeyValue> peer : acceptors.entrySet()) {
+        KeyValue acceptor = peer.getValue();
+        promises.put(peer.getKey(), callPeer(peer.getKey(), () -> acceptor.doPromise(proposalId)));
+      }
+
+      int promisedCount = 0;
+      for(Map.Entry<String, Future<PaxosResponse>> promise : promises.entrySet()) {
+        if(promisedCount >= phase1Quorum) {
+          break;
+        }
+        PaxosResponse isPromised = awaitPeer(promise.getKey(), promise.getValue());
+
+        if(isPromised == null) {
+          logger.logWarningMessage("Prepare: NOT RESPOND proposal " + proposalId + " from Acceptor: " + promise.getKey());
+        } else if(isPromised.isGranted()) {
+          promisedCount++;
+          logger.logInfoMessage("Prepare: PROMISED proposal " + proposalId + " from Acceptor: " + promise.getKey());
+        } else {
+          observe(isPromised);
+          logger.logInfoMessage("Prepare: REJECTED proposal " + proposalId + " from Acceptor: " + promise.getKey()
+                  + "; highest ballot " + isPromised.getHighestBallot());
         }
       }
 
       // not reaching consensus
-      if(promisedCount < majority) {
+      if(promisedCount < phase1Quorum) {
         return false;
       }
 
       // PHASE 2: ACCEPT
+      Map<String, Future<PaxosResponse>> accepts = new LinkedHashMap<>();
+      for(Map.Entry<String, KeyValue> peer : acceptors.entrySet()) {
+        KeyValue acceptor = peer.getValue();
+        accepts.put(peer.getKey(), callPeer(peer.getKey(), () -> acceptor.doAccept(proposalId)));
+      }
+
       int acceptedCount = 0;
-      for(KeyValue acceptor : acceptors) {
-        try {
-          Boolean isAccepted = acceptor.doAccept(proposalId);
-
-          if(isAccepted == null) {
-            logger.logInfoMessage("Accept: NOT RESPOND proposal " + proposalId + " by Acceptor " + acceptor.getPortNum());
-          } else if(isAccepted) {
-            acceptedCount++;
-            logger.logInfoMessage("Accept: PROMISED proposal " + proposalId + " by Acceptor " + acceptor.getPortNum());
-          } else {
-            logger.logInfoMessage("Accept: REJECTED proposal " + proposalId + " by Acceptor " + acceptor.getPortNum());
-          }
-        } catch (Exception e) {
-          logger.logWarningMessage("Accept: NOT RESPOND from Acceptor " + acceptor.getPortNum());
+      for(Map.Entry<String, Future<PaxosResponse>> accept : accepts.entrySet()) {
+        if(acceptedCount >= phase2Quorum) {
+          break;
+        }
+        PaxosResponse isAccepted = awaitPeer(accept.getKey(), accept.getValue());
 
+        if(isAccepted == null) {
+          logger.logInfoMessage("Accept: NOT RESPOND proposal " + proposalId + " by Acceptor " + accept.getKey());
+        } else if(isAccepted.isGranted()) {
+          acceptedCount++;
+          logger.logInfoMessage("Accept: PROMISED proposal " + proposalId + " by Acceptor " + accept.getKey());
+        } else {
+          observe(isAccepted);
+          logger.logInfoMessage("Accept: REJECTED proposal " + proposalId + " by Acceptor " + accept.getKey()
+                  + "; highest ballot " + isAccepted.getHighestBallot());
         }
       }
 
       // not reaching consensus
-      if(acceptedCount < majority) {
+      if(acceptedCount < phase2Quorum) {
         return false;
       }
 
@@ -295,6 +942,7 @@ public class KeyValueStore extends UnicastRemoteObject implements KeyValue, Seri
 
   /**
    * Inner class Acceptor - for KeyValue/KeyValueStore(i.e. PAXOS roles for the server)
+   * Decisions are made inline; the proposer bounds each call with the peer's adaptive deadline.
    */
   public class Acceptor extends UnicastRemoteObject implements Serializable {
     private static final long serialVersionUID = 1l;
@@ -304,7 +952,7 @@ public class KeyValueStore extends UnicastRemoteObject implements KeyValue, Seri
     }
 
     // promise
-    public Boolean promise(int proposalId) {
+    public synchronized PaxosResponse promise(long proposalId) {
 
       // Suppose the random failure probability of Acceptor is 10%
       if(Math.random() <= 0.1) {
@@ -312,36 +960,19 @@ public class KeyValueStore extends UnicastRemoteObject implements KeyValue, Seri
         return null;
       }
 
-      ExecutorService executor = Executors.newSingleThreadExecutor();
-      FutureTask<Boolean> futureTask = new FutureTask<>(new Callable<Boolean>() {
-        @Override
-        public Boolean call() throws Exception {
-          if(proposalId <= maxId) {
-            // rejected
-            return false;
-          } else {
-            maxId = proposalId;
-            return true;
-          }
-        }
-      });
-
-      // future
-      try {
-        executor.submit(futureTask);
-
-        // timeout for 2 seconds to handle server failures
-        return futureTask.get(2, TimeUnit.SECONDS);
-      } catch (ExecutionException | InterruptedException | TimeoutException e) {
-        logger.logWarningMessage("Server fails.");
-        return null;
+      if(proposalId <= maxId) {
+        // rejected, with the ballot to beat
+        return new PaxosResponse(false, maxId);
+      } else {
+        maxId = proposalId;
+        return new PaxosResponse(true, maxId);
       }
 
     }
 
 
     // accept
-    public Boolean accept(int proposalId) {
+    public synchronized PaxosResponse accept(long proposalId) {
 
       // Suppose the random failure probability of Acceptor is 10%
       if(Math.random() <= 0.1) {
@@ -349,25 +980,7 @@ public class KeyValueStore extends UnicastRemoteObject implements KeyValue, Seri
         return null;
       }
 
-      ExecutorService executor = Executors.newSingleThreadExecutor();
-      FutureTask<Boolean> futureTask = new FutureTask<>(new Callable<Boolean>() {
-        @Override
-        public Boolean call() throws Exception {
-          return proposalId == maxId;
-        }
-      });
-
-      // future
-      try {
-        executor.submit(futureTask);
-
-        // timeout for 2 seconds to handle server failures
-        return futureTask.get(2, TimeUnit.SECONDS);
-      } catch (ExecutionException | InterruptedException | TimeoutException e) {
-        e.printStackTrace();
-        logger.logWarningMessage("Server fails.");
-        return null;
-      }
+      return new PaxosResponse(proposalId == maxId, maxId);
 
     }
 
@@ -381,18 +994,42 @@ public class KeyValueStore extends UnicastRemoteObject implements KeyValue, Seri
   public class Learner implements Serializable {
     private static final long serialVersionUID = 1l;
 
-    // learn and be called by doCommit
+    // learn and be called by doCommit, and by replaying a peer's log tail.
+    // Every committed operation is appended to the log once it has been applied.
+    // A write older than the key's current version was overtaken by a later commit and is dropped,
+    // and a delete always leaves a tombstone with its ballot, even for an absent key, so replicas
+    // converge whatever order commits of concurrent proposals arrive in within the reorder window.
     public boolean learn(KVOperation operation) {
+      String key = operation.getKey();
+      long position = operation.getPosition();
+
       if(operation.getType().equalsIgnoreCase("PUT")) {
-        dictionary.put(operation.getKey(), operation.getVal());
+        dictionary.put(key, operation.getVal(), position, operation.getExpiresAt());
+        pendingPurge.remove(key);
+        if(operation.getExpiresAt() != 0) {
+          expirations.schedule(key, operation.getExpiresAt());
+        }
 
-        logger.logInfoMessage("REQUEST - PUT; KEY => " + operation.getKey() + "; VALUE => " + operation.getVal());
+        record(operation);
+
+        logger.logInfoMessage("REQUEST - PUT; KEY => " + key + "; VALUE => " + operation.getVal()
+                + (operation.getExpiresAt() == 0 ? "" : "; EXPIRES AT => " + operation.getExpiresAt()));
         logger.logInfoMessage("Response => code: 200;");
 
         return true;
+      } else if(operation.getType().equalsIgnoreCase("PURGE")) {
+        List<String> purged = dictionary.purge(operation.getKeys(), operation.getExpiresAt(), position);
+        pendingPurge.removeAll(operation.getKeys());
+        record(operation);
+
+        logger.logInfoMessage("REQUEST - PURGE; " + purged.size() + " of " + operation.getKeys().size()
+                + " expired keys purged");
+        return true;
       } else {
-        if(dictionary.containsKey(operation.getKey())) {
-          dictionary.remove(operation.getKey());
+        boolean isRemoved = dictionary.delete(key, position);
+        record(operation);
+
+        if(isRemoved) {
           logger.logInfoMessage("Response => code: 200; "
                   + "message: Delete operation successful");
           return true;
@@ -404,6 +1041,17 @@ public class KeyValueStore extends UnicastRemoteObject implements KeyValue, Seri
       }
 
     }
+
+    // Helper for logging an applied operation and waking the watch subscriptions. An operation
+    // that comes in at or below the horizon of the snapshot on disk is missing from it, so the
+    // snapshot is taken again right away
+    private void record(KVOperation operation) {
+      if(log.append(operation)) {
+        logger.logWarningMessage("Late commit at position " + operation.getPosition() + ", below the snapshot; snapshotting again");
+        maintenance.execute(KeyValueStore.this::takeSnapshot);
+      }
+      watchHub.committed();
+    }
   }
 
 }
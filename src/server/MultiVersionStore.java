@@ -0,0 +1,429 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import utils.VersionedValue;
+
+/**
+ * This class represents the multi-version key value store of one replica.
+ * Every key keeps a chain of versions tagged with the commit position (ballot) that wrote them,
+ * a delete being a tombstone version. Values whose TTL has run out are hidden from every read
+ * right away, and deleted later by a replicated purge.
+ *
+ * Commits of concurrent proposers arrive in any order, so a write older than the key's newest
+ * version is dropped. A delete is always recorded as a tombstone carrying its ballot, even for a
+ * key that is absent already, so that an older write arriving after it is dropped too.
+ *
+ * For the same reason a read snapshot cannot be a position: a commit of a lower ballot may still
+ * arrive after it is opened. Every version is therefore also stamped with the store's apply
+ * sequence number, and a read snapshot sees, for every key, the newest version applied up to the
+ * sequence it was opened at, with expiry evaluated at its open time. It stays fixed while commits
+ * keep coming, and neither waits on the other beyond a per-key lock held for a few instructions;
+ * only writers take turns to stamp their versions.
+ *
+ * Read snapshots are held under a lease that every read renews. Versions no open snapshot can see
+ * any more are garbage-collected by collect(), and a key whose newest version is a tombstone only
+ * once the tombstone is older than the reorder window, below which no late commit is expected.
+ */
+public class MultiVersionStore {
+  // outcomes of adding a version to a chain
+  private static final int ADDED = 0;
+  private static final int DROPPED = 1;
+  private static final int DEAD = 2;
+  private static final int ABSENT = 3;
+
+  private final ConcurrentNavigableMap<String, VersionChain> chains;
+  private final AtomicLong lastPosition;
+
+  // apply sequence of the last stamped version; writers stamp and publish it in turn
+  private final Object applyLock;
+  private volatile long lastSequence;
+
+  // open read snapshots by id
+  private final ConcurrentNavigableMap<Long, ReadSnapshot> snapshots;
+  private final AtomicLong nextSnapshotId;
+  private final long snapshotLeaseMillis;
+
+  // how far below the highest committed position a tombstone is kept, in ballot units
+  private final long tombstoneWindow;
+
+  /**
+   * @param snapshotLeaseMillis how long a read snapshot stays open without a read
+   * @param tombstoneWindow how far below the highest committed position a tombstone is kept
+   */
+  public MultiVersionStore(long snapshotLeaseMillis, long tombstoneWindow) {
+    this.chains = new ConcurrentSkipListMap<>();
+    this.lastPosition = new AtomicLong();
+    this.applyLock = new Object();
+    this.snapshots = new ConcurrentSkipListMap<>();
+    this.nextSnapshotId = new AtomicLong(1);
+    this.snapshotLeaseMillis = snapshotLeaseMillis;
+    this.tombstoneWindow = tombstoneWindow;
+  }
+
+  /**
+   * Return the latest value of the given key with its version, or null if it is absent.
+   * @param key the given key
+   * @return the latest value of the given key with its version, or null if it is absent
+   */
+  public VersionedValue get(String key) {
+    return read(key, Long.MAX_VALUE, System.currentTimeMillis());
+  }
+
+  /**
+   * Return the value of the given key as of the given open read snapshot, renewing its lease,
+   * or null if it was absent then.
+   * @param key the given key
+   * @param snapshotId the id of the read snapshot
+   * @return the value of the given key as of the read snapshot, or null if it was absent then
+   * @throws IllegalArgumentException if the snapshot is unknown, closed or expired
+   */
+  public VersionedValue getAt(String key, long snapshotId) {
+    ReadSnapshot snapshot = renew(snapshotId);
+    return read(key, snapshot.sequence, snapshot.openedAt);
+  }
+
+  // Helper for reading the newest version of a key applied up to the given sequence
+  private VersionedValue read(String key, long sequence, long now) {
+    VersionChain chain = chains.get(key);
+    VersionedValue versioned = chain == null ? null : chain.at(sequence);
+    return versioned == null || versioned.isExpired(now) ? null : versioned;
+  }
+
+  /**
+   * Write a value at the given position, unless the key already has a newer version.
+   * Writing the key's current version again is a no-op, so replays are harmless.
+   * @param key the given key
+   * @param value the value to write
+   * @param position the commit position of the write
+   * @param expiresAt the expiry time in epoch millis, or 0 for never
+   */
+  public void put(String key, String value, long position, long expiresAt) {
+    add(key, new VersionedValue(value, position, expiresAt));
+  }
+
+  /**
+   * Delete the key at the given position, unless it already has a newer version. The delete is
+   * recorded as a tombstone even if the key is absent, so a late older write cannot bring it back.
+   * @param key the given key
+   * @param position the commit position of the delete
+   * @return true if the key was present and is now deleted, otherwise false
+   */
+  public boolean delete(String key, long position) {
+    return add(key, new VersionedValue(null, position)) == ADDED;
+  }
+
+  // Helper for adding a version to the key's chain, creating the chain if needed
+  private int add(String key, VersionedValue version) {
+    int outcome;
+    synchronized (applyLock) {
+      long sequence = lastSequence + 1;
+      VersionChain chain = chains.computeIfAbsent(key, k -> new VersionChain());
+      while ((outcome = chain.add(version, sequence)) == DEAD) {
+        // the chain was collected under us, start a fresh one
+        chains.remove(key, chain);
+        chain = chains.computeIfAbsent(key, k -> new VersionChain());
+      }
+      lastSequence = sequence;
+    }
+    lastPosition.accumulateAndGet(version.getVersion(), Math::max);
+    return outcome;
+  }
+
+  /**
+   * Return true if the latest version of the given key is a value that has expired by now.
+   * @param key the given key
+   * @param now the time in epoch millis
+   * @return true if the key's latest value has expired, otherwise false
+   */
+  public boolean hasExpired(String key, long now) {
+    VersionChain chain = chains.get(key);
+    VersionedValue latest = chain == null ? null : chain.at(Long.MAX_VALUE);
+    return latest != null && latest.isExpired(now);
+  }
+
+  /**
+   * Delete the keys whose latest value had expired by the cutoff, at the given position.
+   * A key written again since it was found expired is left alone.
+   * @param keys the keys to purge
+   * @param cutoff the expiry cutoff in epoch millis
+   * @param position the commit position of the purge
+   * @return the keys actually deleted
+   */
+  public List<String> purge(List<String> keys, long cutoff, long position) {
+    lastPosition.accumulateAndGet(position, Math::max);
+    List<String> purged = new ArrayList<>();
+    synchronized (applyLock) {
+      long sequence = lastSequence + 1;
+      for (String key : keys) {
+        VersionChain chain = chains.get(key);
+        if (chain != null && chain.purge(cutoff, position, sequence)) {
+          purged.add(key);
+        }
+      }
+      lastSequence = sequence;
+    }
+    return purged;
+  }
+
+  /**
+   * Return the highest commit position applied to this store.
+   * @return the highest commit position applied to this store
+   */
+  public long getLastPosition() {
+    return lastPosition.get();
+  }
+
+  /**
+   * Iterate the latest live, unexpired entries in key order, starting at fromKey (inclusive) or
+   * at the first key if fromKey is null.
+   * @param fromKey the key to start at, or null for the first key
+   * @return the latest live entries in key order
+   */
+  public Iterable<Map.Entry<String, VersionedValue>> entries(String fromKey) {
+    return entries(Long.MAX_VALUE, System.currentTimeMillis(), fromKey);
+  }
+
+  /**
+   * Iterate the live, unexpired entries as of the given open read snapshot in key order, starting
+   * at fromKey (inclusive) or at the first key if fromKey is null. The lease is renewed once.
+   * @param snapshotId the id of the read snapshot
+   * @param fromKey the key to start at, or null for the first key
+   * @return the live entries as of the read snapshot in key order
+   * @throws IllegalArgumentException if the snapshot is unknown, closed or expired
+   */
+  public Iterable<Map.Entry<String, VersionedValue>> entriesAt(long snapshotId, String fromKey) {
+    ReadSnapshot snapshot = renew(snapshotId);
+    return entries(snapshot.sequence, snapshot.openedAt, fromKey);
+  }
+
+  // Helper for iterating the entries applied up to the given sequence, unexpired at the given time
+  private Iterable<Map.Entry<String, VersionedValue>> entries(long sequence, long now, String fromKey) {
+    Map<String, VersionChain> tail = fromKey == null ? chains : chains.tailMap(fromKey, true);
+    return () -> new Iterator<Map.Entry<String, VersionedValue>>() {
+      private final Iterator<Map.Entry<String, VersionChain>> chainIterator = tail.entrySet().iterator();
+      private Map.Entry<String, VersionedValue> next = advance();
+
+      private Map.Entry<String, VersionedValue> advance() {
+        while (chainIterator.hasNext()) {
+          Map.Entry<String, VersionChain> chain = chainIterator.next();
+          VersionedValue versioned = chain.getValue().at(sequence);
+          if (versioned != null && !versioned.isExpired(now)) {
+            return Map.entry(chain.getKey(), versioned);
+          }
+        }
+        return null;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public Map.Entry<String, VersionedValue> next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        Map.Entry<String, VersionedValue> current = next;
+        next = advance();
+        return current;
+      }
+    };
+  }
+
+  /**
+   * Open a read snapshot of everything applied so far, as of now, and return its id.
+   * @return the id of the new read snapshot
+   */
+  public long openSnapshot() {
+    long id = nextSnapshotId.getAndIncrement();
+    long now = System.currentTimeMillis();
+    // the position is read first, so that it never runs ahead of what the snapshot sees
+    long position = lastPosition.get();
+    snapshots.put(id, new ReadSnapshot(position, lastSequence, now, now + snapshotLeaseMillis));
+    return id;
+  }
+
+  /**
+   * Return the highest commit position applied when the given read snapshot was opened,
+   * renewing its lease.
+   * @param snapshotId the id of the read snapshot
+   * @return the position of the read snapshot
+   * @throws IllegalArgumentException if the snapshot is unknown, closed or expired
+   */
+  public long snapshotPosition(long snapshotId) {
+    return renew(snapshotId).position;
+  }
+
+  // Helper for looking up an open read snapshot and renewing its lease
+  private ReadSnapshot renew(long snapshotId) {
+    ReadSnapshot snapshot = snapshots.get(snapshotId);
+    if (snapshot == null) {
+      throw new IllegalArgumentException("Unknown, closed or expired snapshot " + snapshotId);
+    }
+    snapshot.leaseExpiry = System.currentTimeMillis() + snapshotLeaseMillis;
+    return snapshot;
+  }
+
+  /**
+   * Close the given read snapshot so that the versions only it could see can be collected.
+   * @param snapshotId the id of the read snapshot
+   */
+  public void closeSnapshot(long snapshotId) {
+    snapshots.remove(snapshotId);
+  }
+
+  /**
+   * Drop expired read snapshots, then every version that no open snapshot and no future read
+   * can see: for every key, all versions older than the one the oldest open snapshot sees, and
+   * the key itself if that version is its newest and a tombstone older than the tombstone window.
+   * @return the number of versions dropped
+   */
+  public int collect() {
+    long now = System.currentTimeMillis();
+    snapshots.values().removeIf(snapshot -> snapshot.leaseExpiry < now);
+
+    long horizon = lastSequence;
+    for (ReadSnapshot snapshot : snapshots.values()) {
+      horizon = Math.min(horizon, snapshot.sequence);
+    }
+    long tombstoneHorizon = lastPosition.get() - tombstoneWindow;
+
+    int dropped = 0;
+    for (Map.Entry<String, VersionChain> chain : chains.entrySet()) {
+      dropped += chain.getValue().collect(horizon, tombstoneHorizon);
+      if (chain.getValue().isDead()) {
+        chains.remove(chain.getKey(), chain.getValue());
+      }
+    }
+    return dropped;
+  }
+
+  // An open read snapshot: its position, apply sequence, open time and lease expiry
+  private static class ReadSnapshot {
+    private final long position;
+    private final long sequence;
+    private final long openedAt;
+    private volatile long leaseExpiry;
+
+    private ReadSnapshot(long position, long sequence, long openedAt, long leaseExpiry) {
+      this.position = position;
+      this.sequence = sequence;
+      this.openedAt = openedAt;
+      this.leaseExpiry = leaseExpiry;
+    }
+  }
+
+  // A version of a key with the apply sequence it was stamped with
+  private static class Version {
+    private final VersionedValue value;
+    private final long sequence;
+
+    private Version(VersionedValue value, long sequence) {
+      this.value = value;
+      this.sequence = sequence;
+    }
+
+    private long getVersion() {
+      return value.getVersion();
+    }
+
+    private boolean isTombstone() {
+      return value.getValue() == null;
+    }
+  }
+
+  // The versions of one key, newest first; a null value is a tombstone
+  private static class VersionChain {
+    private final List<Version> versions = new ArrayList<>(2);
+    private boolean dead;
+
+    // add a version unless a newer one exists, and a collected chain takes no versions at all.
+    // A tombstone for a key that is already absent is still recorded, as ABSENT: it replaces a
+    // lower tombstone with nothing below it, and goes on top of one with older versions below,
+    // which snapshots opened between the two tombstones still need. Writing the newest version
+    // again keeps its apply sequence, so snapshots that see it keep seeing it
+    private synchronized int add(VersionedValue value, long sequence) {
+      if (dead) {
+        return DEAD;
+      }
+      Version version = new Version(value, sequence);
+      if (versions.isEmpty()) {
+        versions.add(version);
+        return version.isTombstone() ? ABSENT : ADDED;
+      }
+      Version newest = versions.get(0);
+      if (newest.getVersion() > version.getVersion()) {
+        return DROPPED;
+      }
+      if (version.isTombstone() && newest.isTombstone()) {
+        if (newest.getVersion() < version.getVersion()) {
+          if (versions.size() == 1) {
+            versions.set(0, version);
+          } else {
+            versions.add(0, version);
+          }
+        }
+        return ABSENT;
+      }
+      if (newest.getVersion() == version.getVersion()) {
+        versions.set(0, new Version(value, newest.sequence));
+        return ADDED;
+      }
+      versions.add(0, version);
+      return ADDED;
+    }
+
+    // add a tombstone if the newest version is a value that had expired by the cutoff
+    private synchronized boolean purge(long cutoff, long position, long sequence) {
+      if (dead || versions.isEmpty()) {
+        return false;
+      }
+      Version newest = versions.get(0);
+      if (newest.isTombstone() || !newest.value.isExpired(cutoff) || newest.getVersion() > position) {
+        return false;
+      }
+      versions.add(0, new Version(new VersionedValue(null, position), sequence));
+      return true;
+    }
+
+    // the newest version applied up to the given sequence, or null if it is a tombstone
+    private synchronized VersionedValue at(long sequence) {
+      for (Version version : versions) {
+        if (version.sequence <= sequence) {
+          return version.isTombstone() ? null : version.value;
+        }
+      }
+      return null;
+    }
+
+    private synchronized int collect(long horizon, long tombstoneHorizon) {
+      for (int i = 0; i < versions.size(); i++) {
+        if (versions.get(i).sequence <= horizon) {
+          int dropped = versions.size() - i - 1;
+          versions.subList(i + 1, versions.size()).clear();
+          if (i == 0 && versions.get(0).isTombstone() && versions.get(0).getVersion() <= tombstoneHorizon) {
+            versions.clear();
+            dead = true;
+            dropped++;
+          }
+          return dropped;
+        }
+      }
+      return 0;
+    }
+
+    private synchronized boolean isDead() {
+      return dead;
+    }
+  }
+
+}
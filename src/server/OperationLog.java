@@ -0,0 +1,159 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import utils.KVOperation;
+
+/**
+ * This class represents the log of committed operations of one replica.
+ * Positions are proposer ballots, and commits of different proposers race each other, so an
+ * operation may be applied after one with a higher position. Every operation therefore also gets
+ * a local apply sequence number when it is appended, and truncation goes by that sequence: an
+ * operation is only dropped once a snapshot has taken it in, whatever its position. Peers still
+ * read the log by position, and a read from below the highest dropped position fails.
+ */
+public class OperationLog {
+  private final ConcurrentNavigableMap<Long, KVOperation> bySequence;
+  private final ConcurrentNavigableMap<Long, KVOperation> byPosition;
+  private volatile long lastSequence;
+  private volatile long truncatedThrough;
+  private volatile long truncatedSequence;
+
+  // the position below which the last snapshot claims to hold every operation
+  private long snapshotHorizon;
+
+  public OperationLog(long truncatedThrough) {
+    this.bySequence = new ConcurrentSkipListMap<>();
+    this.byPosition = new ConcurrentSkipListMap<>();
+    this.truncatedThrough = truncatedThrough;
+    this.snapshotHorizon = truncatedThrough;
+  }
+
+  /**
+   * Append a committed operation once it has been applied, under the next apply sequence number.
+   * An operation already in the log is not appended again, so replays are harmless.
+   * @param operation the committed operation
+   * @return true if the operation came in at or below the horizon of the last snapshot, so that
+   *         the snapshot misses it and has to be taken again, otherwise false
+   */
+  public synchronized boolean append(KVOperation operation) {
+    if (byPosition.putIfAbsent(operation.getPosition(), operation) != null) {
+      return false;
+    }
+    bySequence.put(lastSequence + 1, operation);
+    lastSequence++;
+    return operation.getPosition() <= snapshotHorizon;
+  }
+
+  /**
+   * Return the highest position in the log, or the truncation point if the log is empty.
+   * @return the highest position in the log, or the truncation point if the log is empty
+   */
+  public long lastPosition() {
+    Map.Entry<Long, KVOperation> last = byPosition.lastEntry();
+    return last == null ? truncatedThrough : Math.max(last.getKey(), truncatedThrough);
+  }
+
+  /**
+   * Return the apply sequence number of the last appended operation.
+   * @return the apply sequence number of the last appended operation
+   */
+  public long lastSequence() {
+    return lastSequence;
+  }
+
+  /**
+   * Return the highest position dropped from the log.
+   * @return the highest position dropped from the log
+   */
+  public long getTruncatedThrough() {
+    return truncatedThrough;
+  }
+
+  /**
+   * Return up to maxCount operations after the given position, in position order, or null if the
+   * log no longer reaches back to that position and the caller needs a snapshot first.
+   * @param position the position to read after
+   * @param maxCount the maximum number of operations to return
+   * @return up to maxCount operations after the given position, or null if already truncated
+   */
+  public List<KVOperation> since(long position, int maxCount) {
+    if (position < truncatedThrough) {
+      return null;
+    }
+    List<KVOperation> tail = new ArrayList<>();
+    for (KVOperation operation : byPosition.tailMap(position, false).values()) {
+      if (tail.size() >= maxCount) {
+        break;
+      }
+      tail.add(operation);
+    }
+    return tail;
+  }
+
+  /**
+   * Return up to maxCount operations applied after the given sequence, in apply order, each
+   * carrying its sequence, or null if some of them have been dropped already.
+   * @param sequence the apply sequence to read after
+   * @param maxCount the maximum number of operations to return
+   * @return up to maxCount operations applied after the given sequence, or null if truncated
+   */
+  public List<KVOperation> afterSequence(long sequence, int maxCount) {
+    if (sequence < truncatedSequence) {
+      return null;
+    }
+    List<KVOperation> tail = new ArrayList<>();
+    for (Map.Entry<Long, KVOperation> entry : bySequence.tailMap(sequence, false).entrySet()) {
+      if (tail.size() >= maxCount) {
+        break;
+      }
+      tail.add(entry.getValue().atSequence(entry.getKey()));
+    }
+    return tail;
+  }
+
+  /**
+   * Record that a snapshot has taken in every operation up to the given apply sequence, and
+   * return the position below which it holds every operation: the given read position, lowered
+   * below every operation applied after the sequence and by the reorder window. Any operation
+   * appended from now on at or below that horizon is reported late by append().
+   * @param sequence the apply sequence the snapshot covers
+   * @param position the read position of the snapshot
+   * @param reorderWindow how far to stay below, for commits of lower positions still in flight
+   * @return the position below which the snapshot holds every operation
+   */
+  public synchronized long markSnapshot(long sequence, long position, long reorderWindow) {
+    long horizon = position;
+    for (KVOperation operation : bySequence.tailMap(sequence, false).values()) {
+      horizon = Math.min(horizon, operation.getPosition() - 1);
+    }
+    snapshotHorizon = Math.max(0, horizon - reorderWindow);
+    return snapshotHorizon;
+  }
+
+  /**
+   * Drop the operations applied up to the given sequence whose position is at or below the given
+   * horizon, once a snapshot has taken them in. Later operations stay, whatever their position.
+   * @param sequence the apply sequence the snapshot covers
+   * @param horizon the position below which the snapshot holds every operation
+   */
+  public void truncateThrough(long sequence, long horizon) {
+    Iterator<Map.Entry<Long, KVOperation>> covered = bySequence.headMap(sequence, true).entrySet().iterator();
+    while (covered.hasNext()) {
+      Map.Entry<Long, KVOperation> entry = covered.next();
+      KVOperation operation = entry.getValue();
+      if (operation.getPosition() <= horizon) {
+        covered.remove();
+        byPosition.remove(operation.getPosition(), operation);
+        truncatedThrough = Math.max(truncatedThrough, operation.getPosition());
+        truncatedSequence = Math.max(truncatedSequence, entry.getKey());
+      }
+    }
+  }
+
+}
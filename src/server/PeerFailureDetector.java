@@ -0,0 +1,129 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class represents a per-peer failure detector used by the Proposer.
+ * It keeps an EWMA of each peer's response time and its variance (the same estimator TCP uses
+ * for retransmission timeouts), and derives an adaptive RPC deadline from them. A peer that fails
+ * to respond several times in a row is suspected down and skipped, except for one probe call per
+ * probe interval, so it is picked up again as soon as it recovers.
+ */
+public class PeerFailureDetector {
+  // EWMA gains for the smoothed response time and its mean deviation
+  private static final double ALPHA = 0.125;
+  private static final double BETA = 0.25;
+
+  // deadline bounds; with no samples yet a peer gets the old fixed 2 seconds
+  private static final long MIN_DEADLINE_MS = 50;
+  private static final long MAX_DEADLINE_MS = 2000;
+
+  // consecutive failures before a peer is suspected, and how often a suspected peer is probed
+  private static final int SUSPECT_AFTER_FAILURES = 2;
+  private static final long PROBE_INTERVAL_MS = 1000;
+
+  private final Map<String, PeerStats> peers = new ConcurrentHashMap<>();
+
+  /**
+   * Return the deadline in milliseconds to wait for the given peer's response.
+   * @param peer the peer address, as host:port
+   * @return the deadline in milliseconds to wait for the given peer's response
+   */
+  public long deadlineMillis(String peer) {
+    PeerStats stats = peers.get(peer);
+    if (stats == null) {
+      return MAX_DEADLINE_MS;
+    }
+    synchronized (stats) {
+      if (!stats.hasSample) {
+        return MAX_DEADLINE_MS;
+      }
+      long deadline = (long) Math.ceil(stats.srtt + 4 * stats.rttvar);
+      return Math.max(MIN_DEADLINE_MS, Math.min(MAX_DEADLINE_MS, deadline));
+    }
+  }
+
+  /**
+   * Return true if the given peer should be skipped for now. A suspected peer is let through once
+   * per probe interval so that its recovery can be noticed.
+   * @param peer the peer address, as host:port
+   * @return true if the given peer should be skipped for now, otherwise false
+   */
+  public boolean shouldSkip(String peer) {
+    PeerStats stats = peers.get(peer);
+    if (stats == null) {
+      return false;
+    }
+    synchronized (stats) {
+      if (stats.consecutiveFailures < SUSPECT_AFTER_FAILURES) {
+        return false;
+      }
+      long now = System.currentTimeMillis();
+      if (now - stats.lastProbe >= PROBE_INTERVAL_MS) {
+        stats.lastProbe = now;
+        return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Record a response from the given peer.
+   * @param peer the peer address, as host:port
+   * @param rttMillis the observed response time in milliseconds
+   */
+  public void recordSuccess(String peer, long rttMillis) {
+    PeerStats stats = peers.computeIfAbsent(peer, p -> new PeerStats());
+    synchronized (stats) {
+      if (!stats.hasSample) {
+        stats.srtt = rttMillis;
+        stats.rttvar = rttMillis / 2.0;
+        stats.hasSample = true;
+      } else {
+        stats.rttvar = (1 - BETA) * stats.rttvar + BETA * Math.abs(stats.srtt - rttMillis);
+        stats.srtt = (1 - ALPHA) * stats.srtt + ALPHA * rttMillis;
+      }
+      stats.consecutiveFailures = 0;
+    }
+  }
+
+  /**
+   * Record a timeout, a connection failure or a missing response from the given peer.
+   * @param peer the peer address, as host:port
+   */
+  public void recordFailure(String peer) {
+    PeerStats stats = peers.computeIfAbsent(peer, p -> new PeerStats());
+    synchronized (stats) {
+      stats.consecutiveFailures++;
+      if (stats.consecutiveFailures == SUSPECT_AFTER_FAILURES) {
+        stats.lastProbe = System.currentTimeMillis();
+      }
+    }
+  }
+
+  /**
+   * Return true if the given peer is currently suspected down.
+   * @param peer the peer address, as host:port
+   * @return true if the given peer is currently suspected down, otherwise false
+   */
+  public boolean isSuspected(String peer) {
+    PeerStats stats = peers.get(peer);
+    if (stats == null) {
+      return false;
+    }
+    synchronized (stats) {
+      return stats.consecutiveFailures >= SUSPECT_AFTER_FAILURES;
+    }
+  }
+
+  // Response time statistics of one peer, guarded by its own monitor
+  private static class PeerStats {
+    private double srtt;
+    private double rttvar;
+    private boolean hasSample;
+    private int consecutiveFailures;
+    private long lastProbe;
+  }
+
+}
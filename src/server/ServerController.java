@@ -5,7 +5,11 @@ import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import coordinator.Coordinator;
 import coordinator.ICoordinator;
 import utils.KVLogger;
 
@@ -13,10 +17,12 @@ public class ServerController {
   private static KVLogger logger = new KVLogger("ServerController");
 
   public static void main(String[] args) {
-    if ((args.length != 3 && args.length != 5) || !args[0].matches("\\d+")) {
-      logger.logErrorMessage("Please enter in valid format in either 1 or 2: ");
+    boolean recover = args.length == 4 && args[3].equalsIgnoreCase("recover");
+    if ((args.length != 3 && args.length != 5 && !recover) || !args[0].matches("\\d+")) {
+      logger.logErrorMessage("Please enter in valid format in either 1, 2 or 3: ");
       logger.logErrorMessage("1. To Start a new server: java ServerController <Server Port Number> <Server host name> <Coordinator hostName>");
       logger.logErrorMessage("2. To restart a peer server from a current live server: java ServerController <To-be-restarted Server Port Number> <To-be-restarted Server Host Name> <Coordinator host name> <Live Server Port Number> <Live Server Host Name>");
+      logger.logErrorMessage("3. To recover a server from its own snapshot and the live peers: java ServerController <To-be-recovered Server Port Number> <To-be-recovered Server Host Name> <Coordinator host name> recover");
       System.exit(1);
     }
 
@@ -30,12 +36,18 @@ public class ServerController {
 
       // add replica and set coordinator for this server --- connect to coordinator
       ICoordinator coordinator = (ICoordinator) Naming.lookup("rmi://" + coordinatorHostName + ":1111/KeyValueCoordinator");
-      coordinator.addServer(hostName, portNum);
+      if(!coordinator.addServer(hostName, portNum)) {
+        logger.logErrorMessage("Coordinator refused " + hostName + ":" + portNum
+                + ": its ballot id clashes with another server's; pick another port");
+        System.exit(1);
+      }
 
       if(args.length == 5) {
         int peerPortNum = Integer.parseInt(args[3]);
         String peerHostName = args[4];
         kv.reStart(peerPortNum, peerHostName);
+      } else if(recover) {
+        kv.recover();
       }
 
       LocateRegistry.createRegistry(portNum);
@@ -43,11 +55,40 @@ public class ServerController {
 
       logger.logInfoMessage("Server starts on port " + portNum);
 
+      startHeartbeats(hostName, portNum, coordinatorHostName);
+
     } catch (RemoteException | MalformedURLException | NotBoundException e) {
       logger.logErrorMessage(e.getMessage());
     }
 
   }
-}
 
+  /**
+   * Send a liveness heartbeat to the coordinator every heartbeat interval, so that the coordinator
+   * can tell this server from a crashed one. The coordinator is looked up again after a failure,
+   * in case it was restarted.
+   *
+   * @param hostName            this server's host name
+   * @param portNum             this server's port number
+   * @param coordinatorHostName the coordinator's host name
+   */
+  private static void startHeartbeats(String hostName, int portNum, String coordinatorHostName) {
+    ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor();
+    heartbeats.scheduleAtFixedRate(new Runnable() {
+      private ICoordinator coordinator;
 
+      @Override
+      public void run() {
+        try {
+          if(coordinator == null) {
+            coordinator = (ICoordinator) Naming.lookup("rmi://" + coordinatorHostName + ":1111/KeyValueCoordinator");
+          }
+          coordinator.heartbeat(hostName, portNum);
+        } catch (RemoteException | MalformedURLException | NotBoundException e) {
+          coordinator = null;
+          logger.logWarningMessage("Heartbeat to coordinator failed: " + e.getMessage());
+        }
+      }
+    }, 0, Coordinator.HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,125 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import utils.KVCodec;
+import utils.VersionedValue;
+
+/**
+ * This class represents a replica's on-disk snapshot: the log position below which it holds every
+ * committed operation, followed by the versioned entries, in the KVCodec format. A new snapshot is written next to the old one and
+ * moved over it atomically, so a crash never leaves a half-written snapshot behind.
+ */
+public class SnapshotFile {
+  private static final int MAGIC = 0x4B56534E; // "KVSN"
+  private static final int FORMAT_VERSION = 2;
+
+  private final Path path;
+
+  public SnapshotFile(Path path) {
+    this.path = path;
+  }
+
+  public boolean exists() {
+    return Files.exists(path);
+  }
+
+  /**
+   * Write the given entries as the snapshot covering the given position.
+   * @param position the log position below which the snapshot holds every operation
+   * @param entries the entries to write
+   * @throws IOException
+   */
+  public void write(long position, Iterable<Map.Entry<String, VersionedValue>> entries) throws IOException {
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      KVCodec.writeVarInt(out, FORMAT_VERSION);
+      KVCodec.writeVarLong(out, position);
+      for (Map.Entry<String, VersionedValue> entry : entries) {
+        out.writeBoolean(true);
+        KVCodec.writeString(out, entry.getKey());
+        KVCodec.writeVarLong(out, entry.getValue().getVersion());
+        KVCodec.writeVarLong(out, entry.getValue().getExpiresAt());
+        KVCodec.writeString(out, entry.getValue().getValue());
+      }
+      out.writeBoolean(false);
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Read the snapshot into the given store, and return the log position below which it holds
+   * every operation.
+   * The file is memory-mapped, so the entries are decoded straight out of the page cache instead
+   * of being copied through a stream buffer first.
+   * @param store the store to read the entries into
+   * @return the log position below which the snapshot holds every operation
+   * @throws IOException
+   */
+  public long read(MultiVersionStore store) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      InputStream source = size <= Integer.MAX_VALUE
+              ? new MappedInput(channel.map(FileChannel.MapMode.READ_ONLY, 0, size))
+              : new BufferedInputStream(Channels.newInputStream(channel));
+      DataInputStream in = new DataInputStream(source);
+      if (in.readInt() != MAGIC || KVCodec.readVarInt(in) != FORMAT_VERSION) {
+        throw new StreamCorruptedException("Not a snapshot file: " + path);
+      }
+      long position = KVCodec.readVarLong(in);
+      while (in.readBoolean()) {
+        String key = KVCodec.readString(in);
+        long version = KVCodec.readVarLong(in);
+        long expiresAt = KVCodec.readVarLong(in);
+        store.put(key, KVCodec.readString(in), version, expiresAt);
+      }
+      return position;
+    } catch (EOFException e) {
+      throw new StreamCorruptedException("Truncated snapshot file: " + path);
+    }
+  }
+
+  // An input stream over a mapped snapshot file
+  private static class MappedInput extends InputStream {
+    private final ByteBuffer buffer;
+
+    private MappedInput(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, n);
+      return n;
+    }
+  }
+
+}
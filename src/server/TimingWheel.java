@@ -0,0 +1,88 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This class represents a hashed timing wheel of key expirations.
+ * The wheel is a ring of buckets, each covering one tick; an expiration is hashed to the bucket
+ * of its tick, and one more than a turn away stays in its bucket until the wheel comes round to
+ * its tick. Scheduling is O(1) and each tick only looks at one bucket, however many keys are
+ * waiting to expire.
+ */
+public class TimingWheel {
+  private final long tickMillis;
+  private final List<ConcurrentLinkedQueue<Expiration>> buckets;
+  private final int mask;
+
+  // the next tick to process, counted from the epoch
+  private volatile long nextTick;
+
+  /**
+   * @param tickMillis the duration of one tick in milliseconds
+   * @param size the number of buckets, rounded up to a power of two
+   */
+  public TimingWheel(long tickMillis, int size) {
+    int buckets = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+    this.tickMillis = tickMillis;
+    this.buckets = new ArrayList<>(buckets);
+    for (int i = 0; i < buckets; i++) {
+      this.buckets.add(new ConcurrentLinkedQueue<>());
+    }
+    this.mask = buckets - 1;
+    this.nextTick = System.currentTimeMillis() / tickMillis;
+  }
+
+  /**
+   * Schedule the expiration of the given key at the given time.
+   * @param key the key to expire
+   * @param expiresAt the expiry time in epoch millis
+   */
+  public void schedule(String key, long expiresAt) {
+    // round up so an expiration never fires early, and put one already due in the next bucket
+    long tick = Math.max((expiresAt + tickMillis - 1) / tickMillis, nextTick);
+    buckets.get((int) (tick & mask)).add(new Expiration(key, expiresAt, tick));
+  }
+
+  /**
+   * Process every tick up to the given time and return the expirations that came due, as key
+   * to expiry time.
+   * @param now the current time in epoch millis
+   * @return the expirations that came due
+   */
+  public synchronized List<Map.Entry<String, Long>> advance(long now) {
+    List<Map.Entry<String, Long>> due = new ArrayList<>();
+    long currentTick = now / tickMillis;
+    // after a long pause, one full turn visits every bucket
+    long firstTick = Math.max(nextTick, currentTick - mask);
+    for (long tick = firstTick; tick <= currentTick; tick++) {
+      Iterator<Expiration> bucket = buckets.get((int) (tick & mask)).iterator();
+      while (bucket.hasNext()) {
+        Expiration expiration = bucket.next();
+        if (expiration.tick <= currentTick) {
+          bucket.remove();
+          due.add(Map.entry(expiration.key, expiration.expiresAt));
+        }
+      }
+    }
+    nextTick = currentTick + 1;
+    return due;
+  }
+
+  // A scheduled expiration; it is due once the wheel has reached its tick
+  private static class Expiration {
+    private final String key;
+    private final long expiresAt;
+    private final long tick;
+
+    private Expiration(String key, long expiresAt, long tick) {
+      this.key = key;
+      this.expiresAt = expiresAt;
+      this.tick = tick;
+    }
+  }
+
+}
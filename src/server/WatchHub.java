@@ -0,0 +1,246 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.LongSupplier;
+
+import utils.KVLogger;
+import utils.KVOperation;
+
+/**
+ * This class represents the watch subscriptions of one server.
+ * Subscriptions do not buffer events: each one keeps a cursor into the operation log and, when
+ * woken by a commit, reads the log after its cursor in batches and sends the matching operations
+ * to its listener, one batch at a time. Cursors are apply sequence numbers, not positions, since
+ * an operation may be applied after one with a higher position. The log is the buffer, so a slow
+ * subscriber only lags its cursor, and the log is not truncated past the slowest cursor. To keep a
+ * stuck subscriber from holding the log forever, one that lags more than maxLag operations or does
+ * not return from a callback within the call timeout is dropped and told so through onTruncated.
+ * Apply sequences start over when the server restarts or replaces its log, so a cursor past the
+ * end of the log belongs to an earlier log, and its subscription is dropped the same way.
+ */
+public class WatchHub {
+  private final BiFunction<Long, Integer, List<KVOperation>> logReader;
+  private final LongSupplier lastSequence;
+  private final int batchSize;
+  private final long maxLag;
+  private final long callTimeoutMillis;
+  private final Map<Long, Subscription> subscriptions;
+  private final AtomicLong nextId;
+  private final ExecutorService dispatcher;
+  // runs the listener callbacks, so that a hung callback only holds its own thread
+  private final ExecutorService callbacks;
+  private final KVLogger logger;
+
+  /**
+   * @param logReader reads up to a number of operations after an apply sequence, or null if truncated
+   * @param lastSequence returns the apply sequence of the last operation in the log
+   * @param batchSize the maximum number of log operations read per batch
+   * @param maxLag the most operations a subscriber may lag behind before it is dropped
+   * @param callTimeoutMillis the longest a listener callback may take before its subscriber is dropped
+   */
+  public WatchHub(BiFunction<Long, Integer, List<KVOperation>> logReader, LongSupplier lastSequence,
+                  int batchSize, long maxLag, long callTimeoutMillis) {
+    this.logReader = logReader;
+    this.lastSequence = lastSequence;
+    this.batchSize = batchSize;
+    this.maxLag = maxLag;
+    this.callTimeoutMillis = callTimeoutMillis;
+    this.subscriptions = new ConcurrentHashMap<>();
+    this.nextId = new AtomicLong(1);
+    this.dispatcher = Executors.newCachedThreadPool();
+    this.callbacks = Executors.newCachedThreadPool();
+    this.logger = new KVLogger("WatchHub");
+  }
+
+  /**
+   * Add a subscription to the operations on keys starting with keyOrPrefix, after fromSequence.
+   * @param keyOrPrefix the key or key prefix to watch, "" for every key
+   * @param fromSequence the apply sequence to stream after
+   * @param listener the subscriber
+   * @return the subscription id
+   */
+  public long watch(String keyOrPrefix, long fromSequence, WatchListener listener) {
+    long id = nextId.getAndIncrement();
+    Subscription subscription = new Subscription(id, keyOrPrefix, fromSequence, listener);
+    subscriptions.put(id, subscription);
+    subscription.wake();
+    return id;
+  }
+
+  /**
+   * Remove a subscription.
+   * @param subscriptionId the subscription id
+   */
+  public void unwatch(long subscriptionId) {
+    subscriptions.remove(subscriptionId);
+  }
+
+  /**
+   * Wake every subscription after a commit.
+   */
+  public void committed() {
+    for (Subscription subscription : subscriptions.values()) {
+      subscription.wake();
+    }
+  }
+
+  /**
+   * Drop every subscription through onTruncated, once the log has been replaced by a new one
+   * whose apply sequences start over, so that no cursor is read against the wrong log.
+   */
+  public void logReplaced() {
+    for (Subscription subscription : subscriptions.values()) {
+      subscription.drop("log replaced");
+    }
+  }
+
+  /**
+   * Return the lowest cursor of all subscriptions, or Long.MAX_VALUE if there are none.
+   * The log must be kept after this apply sequence. Subscriptions lagging more than maxLag
+   * operations behind are dropped first, so they do not count.
+   * @return the lowest cursor of all subscriptions, or Long.MAX_VALUE if there are none
+   */
+  public long lowestCursor() {
+    long lowest = Long.MAX_VALUE;
+    for (Subscription subscription : subscriptions.values()) {
+      if (subscription.isLagging()) {
+        subscription.drop("lagging more than " + maxLag + " operations behind");
+        continue;
+      }
+      lowest = Math.min(lowest, subscription.cursor);
+    }
+    return lowest;
+  }
+
+  // One subscriber with its cursor; at most one dispatch runs per subscription at a time
+  private class Subscription {
+    private final long id;
+    private final String prefix;
+    private final WatchListener listener;
+    private volatile long cursor;
+    private final AtomicBoolean running;
+    private final AtomicBoolean pending;
+
+    private Subscription(long id, String prefix, long cursor, WatchListener listener) {
+      this.id = id;
+      this.prefix = prefix;
+      this.cursor = cursor;
+      this.listener = listener;
+      this.running = new AtomicBoolean();
+      this.pending = new AtomicBoolean();
+    }
+
+    // a purge matches if any of its keys does
+    private boolean matches(KVOperation operation) {
+      if (operation.getKeys() != null) {
+        for (String key : operation.getKeys()) {
+          if (key.startsWith(prefix)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      return operation.getKey().startsWith(prefix);
+    }
+
+    private boolean isLagging() {
+      return lastSequence.getAsLong() - cursor > maxLag;
+    }
+
+    // remove the subscription and tell the listener, without waiting on it
+    private void drop(String reason) {
+      if (!subscriptions.remove(id, this)) {
+        return;
+      }
+      logger.logWarningMessage("Watch subscription " + id + " dropped: " + reason);
+      long droppedAt = cursor;
+      callbacks.submit(() -> {
+        listener.onTruncated(droppedAt);
+        return null;
+      });
+    }
+
+    // call the listener with a batch, waiting at most the call timeout
+    private void send(List<KVOperation> events) throws Exception {
+      Future<?> call = callbacks.submit(() -> {
+        listener.onEvents(events);
+        return null;
+      });
+      try {
+        call.get(callTimeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        call.cancel(true);
+        throw e;
+      }
+    }
+
+    private void wake() {
+      pending.set(true);
+      if (running.compareAndSet(false, true)) {
+        dispatcher.submit(this::dispatch);
+      }
+    }
+
+    private void dispatch() {
+      try {
+        while (pending.getAndSet(false)) {
+          List<KVOperation> operations;
+          do {
+            if (!subscriptions.containsKey(id)) {
+              return;
+            }
+            if (isLagging()) {
+              drop("lagging more than " + maxLag + " operations behind");
+              return;
+            }
+            if (cursor > lastSequence.getAsLong()) {
+              drop("cursor " + cursor + " past the end of the log, from an earlier log");
+              return;
+            }
+            operations = logReader.apply(cursor, batchSize);
+            if (operations == null) {
+              drop("log truncated past its cursor");
+              return;
+            }
+
+            List<KVOperation> events = new ArrayList<>();
+            for (KVOperation operation : operations) {
+              if (matches(operation)) {
+                events.add(operation);
+              }
+            }
+            if (!events.isEmpty()) {
+              send(events);
+            }
+            if (!operations.isEmpty()) {
+              cursor = operations.get(operations.size() - 1).getSequence();
+            }
+          } while (operations.size() == batchSize);
+        }
+      } catch (TimeoutException e) {
+        drop("no answer within " + callTimeoutMillis + " ms");
+      } catch (Exception e) {
+        subscriptions.remove(id);
+        logger.logWarningMessage("Watch subscription " + id + " dropped: " + e.getMessage());
+      } finally {
+        running.set(false);
+        // a commit may have come in between the last check and releasing the flag
+        if (pending.get() && subscriptions.containsKey(id) && running.compareAndSet(false, true)) {
+          dispatcher.submit(this::dispatch);
+        }
+      }
+    }
+  }
+
+}
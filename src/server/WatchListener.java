@@ -0,0 +1,34 @@
+package server;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+import utils.KVOperation;
+
+/**
+ * This Interface represents a subscriber of committed operations, registered with KeyValue.watch.
+ * It extends Remote interface so that the server can call back into the subscriber.
+ */
+public interface WatchListener extends Remote {
+
+  /**
+   * Receive the next batch of committed operations matching the subscription, in the order the
+   * server applied them. The server sends the next batch only after this call returns, so a slow
+   * subscriber falls behind instead of being flooded, up to the server's lag and call time limits.
+   * @param events the committed operations, each carrying its position and apply sequence
+   * @throws RemoteException
+   */
+  void onEvents(List<KVOperation> events) throws RemoteException;
+
+  /**
+   * Be told that the subscription was dropped, because the server's log no longer reaches back
+   * to where it stood, or was replaced by a new one since, e.g. after the server restarted, or
+   * because the subscriber lagged too far behind or took too long to take a batch. The subscriber should re-read the keys it cares about (e.g. through a read snapshot)
+   * and watch again from the current sequence.
+   * @param truncatedThrough the apply sequence the subscription stood at
+   * @throws RemoteException
+   */
+  void onTruncated(long truncatedThrough) throws RemoteException;
+
+}
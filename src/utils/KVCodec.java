@@ -0,0 +1,210 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class represents the compact binary codec shared by the externalizable KV objects.
+ * Lengths are written as varints, and every byte block starts with a one-byte tag telling
+ * whether it is null, raw, or Deflate-compressed. Blocks at or above the compression threshold
+ * are compressed, and are only kept compressed if that actually makes them smaller.
+ */
+public class KVCodec {
+  // blocks smaller than this are never worth the Deflate header
+  public static final int COMPRESSION_THRESHOLD = 512;
+
+  private static final byte NULL_BLOCK = 0;
+  private static final byte RAW_BLOCK = 1;
+  private static final byte DEFLATE_BLOCK = 2;
+
+  private KVCodec() {
+  }
+
+  /**
+   * Write a non-negative int as an unsigned LEB128 varint (1 byte for values below 128).
+   * @param out the output to write to
+   * @param value the non-negative value to write
+   * @throws IOException
+   */
+  public static void writeVarInt(DataOutput out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  /**
+   * Read an int written by writeVarInt.
+   * @param in the input to read from
+   * @return the decoded value
+   * @throws IOException
+   */
+  public static int readVarInt(DataInput in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = in.readByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new StreamCorruptedException("Malformed varint");
+  }
+
+  /**
+   * Write a non-negative long as an unsigned LEB128 varint.
+   * @param out the output to write to
+   * @param value the non-negative value to write
+   * @throws IOException
+   */
+  public static void writeVarLong(DataOutput out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  /**
+   * Read a long written by writeVarLong.
+   * @param in the input to read from
+   * @return the decoded value
+   * @throws IOException
+   */
+  public static long readVarLong(DataInput in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = in.readByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new StreamCorruptedException("Malformed varlong");
+  }
+
+  /**
+   * Write a nullable string as a tagged UTF-8 block.
+   * @param out the output to write to
+   * @param str the string to write, may be null
+   * @throws IOException
+   */
+  public static void writeString(DataOutput out, String str) throws IOException {
+    writeBlock(out, str == null ? null : str.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Read a nullable string written by writeString.
+   * @param in the input to read from
+   * @return the decoded string, or null if a null string was written
+   * @throws IOException
+   */
+  public static String readString(DataInput in) throws IOException {
+    byte[] bytes = readBlock(in);
+    return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Write a nullable byte block: tag, varint length, and then the (possibly compressed) bytes.
+   * Compressed blocks also carry the varint length of the original bytes.
+   * @param out the output to write to
+   * @param bytes the bytes to write, may be null
+   * @throws IOException
+   */
+  public static void writeBlock(DataOutput out, byte[] bytes) throws IOException {
+    if (bytes == null) {
+      out.writeByte(NULL_BLOCK);
+      return;
+    }
+
+    if (bytes.length >= COMPRESSION_THRESHOLD) {
+      byte[] compressed = deflate(bytes);
+      if (compressed.length < bytes.length) {
+        out.writeByte(DEFLATE_BLOCK);
+        writeVarInt(out, bytes.length);
+        writeVarInt(out, compressed.length);
+        out.write(compressed);
+        return;
+      }
+    }
+
+    out.writeByte(RAW_BLOCK);
+    writeVarInt(out, bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Read a nullable byte block written by writeBlock, decompressing it if needed.
+   * @param in the input to read from
+   * @return the original bytes, or null if a null block was written
+   * @throws IOException
+   */
+  public static byte[] readBlock(DataInput in) throws IOException {
+    byte tag = in.readByte();
+    if (tag == NULL_BLOCK) {
+      return null;
+    } else if (tag == RAW_BLOCK) {
+      byte[] bytes = new byte[readVarInt(in)];
+      in.readFully(bytes);
+      return bytes;
+    } else if (tag == DEFLATE_BLOCK) {
+      int rawLength = readVarInt(in);
+      byte[] compressed = new byte[readVarInt(in)];
+      in.readFully(compressed);
+      return inflate(compressed, rawLength);
+    }
+    throw new StreamCorruptedException("Unknown block tag " + tag);
+  }
+
+  // Helper for compressing a block with Deflate
+  private static byte[] deflate(byte[] bytes) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(bytes);
+      deflater.finish();
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 2 + 16);
+      byte[] chunk = new byte[4096];
+      while (!deflater.finished()) {
+        int n = deflater.deflate(chunk);
+        buffer.write(chunk, 0, n);
+      }
+      return buffer.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  // Helper for decompressing a Deflate block of a known original length
+  private static byte[] inflate(byte[] compressed, int rawLength) throws IOException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      byte[] bytes = new byte[rawLength];
+      int read = 0;
+      while (read < rawLength && !inflater.finished()) {
+        int n = inflater.inflate(bytes, read, rawLength - read);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        read += n;
+      }
+      if (read != rawLength) {
+        throw new StreamCorruptedException("Truncated compressed block");
+      }
+      return bytes;
+    } catch (DataFormatException e) {
+      throw new StreamCorruptedException("Corrupted compressed block: " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+}
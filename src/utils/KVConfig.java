@@ -0,0 +1,72 @@
+package utils;
+
+/**
+ * This class holds the tunable settings of the key value service.
+ * Each setting can be overridden with a system property on the command line,
+ * e.g. java -Dkv.proposal.deadlineMs=5000 server.ServerController 8885 localhost localhost
+ */
+public class KVConfig {
+
+  // how long a proposer keeps retrying a contended or failed proposal before giving up
+  public static final long PROPOSAL_DEADLINE_MS = Long.getLong("kv.proposal.deadlineMs", 3000);
+
+  // randomized exponential backoff between proposal attempts: the n-th retry waits a random
+  // time below min(base * 2^n, max)
+  public static final long PROPOSAL_BACKOFF_BASE_MS = Long.getLong("kv.proposal.backoffBaseMs", 10);
+  public static final long PROPOSAL_BACKOFF_MAX_MS = Long.getLong("kv.proposal.backoffMaxMs", 500);
+
+  // client-side read cache: maximum number of cached keys (0 disables the cache), and how long
+  // a cached value is served before it is revalidated with the server
+  public static final int CLIENT_CACHE_SIZE = Integer.getInteger("kv.client.cacheSize", 0);
+  public static final long CLIENT_CACHE_LEASE_MS = Long.getLong("kv.client.cacheLeaseMs", 1000);
+
+  // how often a server snapshots its store and truncates its operation log, and where the
+  // snapshot files go
+  public static final long SNAPSHOT_INTERVAL_MS = Long.getLong("kv.snapshot.intervalMs", 60000);
+  public static final String SNAPSHOT_DIR = System.getProperty("kv.snapshot.dir", ".");
+  // how far below its read position a snapshot claims to be complete, for the commits of lower
+  // positions still in flight; recovery replays the peers' logs from there
+  public static final long SNAPSHOT_REORDER_WINDOW_MS = Long.getLong("kv.snapshot.reorderWindowMs", 5000);
+
+  // server admission control: writes running at once, writes allowed to wait for a slot, and how
+  // long one may wait before it is rejected as overloaded (503)
+  public static final int ADMISSION_MAX_IN_FLIGHT = Integer.getInteger("kv.admission.maxInFlight", 4);
+  public static final int ADMISSION_QUEUE_CAPACITY = Integer.getInteger("kv.admission.queueCapacity", 32);
+  public static final long ADMISSION_MAX_WAIT_MS = Long.getLong("kv.admission.maxWaitMs", 2000);
+
+  // client retries of writes rejected as overloaded: the first wait, doubled on each retry
+  // and randomized, and the number of retries before giving up
+  public static final long CLIENT_RETRY_AFTER_MS = Long.getLong("kv.client.retryAfterMs", 100);
+  public static final int CLIENT_MAX_RETRIES = Integer.getInteger("kv.client.maxRetries", 5);
+
+  // how long an idle read snapshot stays open, and how often versions no open snapshot can see
+  // any more are garbage-collected
+  public static final long READ_SNAPSHOT_LEASE_MS = Long.getLong("kv.readSnapshot.leaseMs", 60000);
+  public static final long VERSION_GC_INTERVAL_MS = Long.getLong("kv.versionGc.intervalMs", 5000);
+
+  // maximum number of log operations read per watch batch
+  public static final int WATCH_BATCH_SIZE = Integer.getInteger("kv.watch.batchSize", 256);
+  // how many operations a watch subscriber may lag behind, and how long one callback may take,
+  // before the subscriber is dropped so that it cannot hold back log truncation
+  public static final long WATCH_MAX_LAG = Long.getLong("kv.watch.maxLag", 100000);
+  public static final long WATCH_CALL_TIMEOUT_MS = Long.getLong("kv.watch.callTimeoutMs", 5000);
+
+  // key expiration: timing wheel tick and size, and the most keys purged by one replicated purge
+  public static final long TTL_TICK_MS = Long.getLong("kv.ttl.tickMs", 100);
+  public static final int TTL_WHEEL_SIZE = Integer.getInteger("kv.ttl.wheelSize", 512);
+  public static final int TTL_PURGE_BATCH_SIZE = Integer.getInteger("kv.ttl.purgeBatchSize", 1000);
+
+  // how long a recovering server waits for one peer to send its share of the missed operations
+  public static final long RECOVERY_FETCH_TIMEOUT_MS = Long.getLong("kv.recovery.fetchTimeoutMs", 30000);
+
+  // flexible Paxos quorum sizes over the configured cluster, for prepare (phase 1) and accept
+  // (phase 2); 0 means a majority. Any sizes are safe as long as phase1 + phase2 exceeds the
+  // cluster size, so that every prepare quorum overlaps every accept quorum, given that every
+  // server stamps its own id into its ballots
+  public static final int QUORUM_PHASE1 = Integer.getInteger("kv.quorum.phase1", 0);
+  public static final int QUORUM_PHASE2 = Integer.getInteger("kv.quorum.phase2", 0);
+
+  private KVConfig() {
+  }
+
+}
@@ -1,20 +1,59 @@
 package utils;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * This class represents the KV operations: GET, PUT and DELETE.
+ * This class represents the KV operations: GET, PUT, DELETE and PURGE.
+ * A committed operation carries its position, the ballot of the proposal that agreed on it.
+ * A PUT may carry an expiry time, agreed with the rest of the operation; a PURGE deletes a batch
+ * of keys whose values had expired by its cutoff time. An operation streamed to a watch subscriber
+ * also carries the apply sequence number it got in the server's log.
+ * It is sent once per learner per write, so it is externalized in the compact KVCodec format
+ * (a one-byte type tag, the varint position, expiry and sequence, then the key and value blocks,
+ * or the purged keys) instead of default serialization.
  */
-public class KVOperation implements Serializable {
+public class KVOperation implements Externalizable {
   private static final long serialVersionUID = 1l;
 
   public enum Type {
-    GET, PUT, DELETE
+    GET((byte) 0), PUT((byte) 1), DELETE((byte) 2), PURGE((byte) 3);
+
+    private final byte tag;
+
+    Type(byte tag) {
+      this.tag = tag;
+    }
+
+    private static Type fromTag(byte tag) throws StreamCorruptedException {
+      for (Type type : values()) {
+        if (type.tag == tag) {
+          return type;
+        }
+      }
+      throw new StreamCorruptedException("Unknown operation tag " + tag);
+    }
   }
 
   private Type type;
   private String key;
   private String val;
+  private long position;
+  // PUT: expiry time in epoch millis, 0 for never; PURGE: the expiry cutoff
+  private long expiresAt;
+  // PURGE: the keys to purge
+  private List<String> keys;
+  // the apply sequence number in the sending server's log, 0 if not sent from the log
+  private long sequence;
+
+  // public no-arg constructor required by Externalizable
+  public KVOperation() {
+  }
 
   public KVOperation(Type type, String key, String val) {
     this.type = type;
@@ -22,6 +61,41 @@ public class KVOperation implements Serializable {
     this.val = val;
   }
 
+  public KVOperation(Type type, String key, String val, long position) {
+    this(type, key, val);
+    this.position = position;
+  }
+
+  public KVOperation(Type type, String key, String val, long position, long expiresAt) {
+    this(type, key, val, position);
+    this.expiresAt = expiresAt;
+  }
+
+  /**
+   * Return a PURGE operation deleting the given keys if their values expired by the cutoff.
+   * @param keys the keys to purge
+   * @param cutoff the expiry cutoff in epoch millis
+   * @param position the position of the operation
+   * @return the PURGE operation
+   */
+  public static KVOperation purge(List<String> keys, long cutoff, long position) {
+    KVOperation purge = new KVOperation(Type.PURGE, null, null, position, cutoff);
+    purge.keys = keys;
+    return purge;
+  }
+
+  /**
+   * Return a copy of this operation carrying the given apply sequence number.
+   * @param sequence the apply sequence number in the server's log
+   * @return a copy of this operation carrying the given apply sequence number
+   */
+  public KVOperation atSequence(long sequence) {
+    KVOperation copy = new KVOperation(type, key, val, position, expiresAt);
+    copy.keys = keys;
+    copy.sequence = sequence;
+    return copy;
+  }
+
   public String getType() {
     return type.toString();
   }
@@ -34,5 +108,55 @@ public class KVOperation implements Serializable {
     return val;
   }
 
-}
+  public long getPosition() {
+    return position;
+  }
+
+  public long getExpiresAt() {
+    return expiresAt;
+  }
 
+  public List<String> getKeys() {
+    return keys;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeByte(type.tag);
+    KVCodec.writeVarLong(out, position);
+    KVCodec.writeVarLong(out, expiresAt);
+    KVCodec.writeVarLong(out, sequence);
+    if (type == Type.PURGE) {
+      KVCodec.writeVarInt(out, keys.size());
+      for (String purged : keys) {
+        KVCodec.writeString(out, purged);
+      }
+      return;
+    }
+    KVCodec.writeString(out, key);
+    KVCodec.writeString(out, val);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    type = Type.fromTag(in.readByte());
+    position = KVCodec.readVarLong(in);
+    expiresAt = KVCodec.readVarLong(in);
+    sequence = KVCodec.readVarLong(in);
+    if (type == Type.PURGE) {
+      int size = KVCodec.readVarInt(in);
+      keys = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        keys.add(KVCodec.readString(in));
+      }
+      return;
+    }
+    key = KVCodec.readString(in);
+    val = KVCodec.readString(in);
+  }
+
+}
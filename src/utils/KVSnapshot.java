@@ -0,0 +1,134 @@
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class represents one chunk of a data store copy sent between replicas.
+ * A copy is transferred as a sequence of chunks of at most CHUNK_SIZE characters so that a large
+ * store, or a single large value, never turns into one giant RMI payload. Each chunk carries the
+ * cursor (resume key, value offset and the version of the value split at that offset) to request
+ * the next chunk with; a null resume key means the copy is complete. The cursor also carries the
+ * id of the read snapshot the copy is read from, so that every chunk is read as of the same point
+ * in time. A value overwritten between two chunks all the same is sent again from offset 0 under
+ * its new version, so the receiver joins the tail of a split value to its head only if their
+ * versions match, and replaces the value otherwise. Entries keep their versions. The entries of a chunk are encoded together
+ * as one KVCodec block, so the whole chunk gets compressed when it is large enough.
+ */
+public class KVSnapshot implements Externalizable {
+  private static final long serialVersionUID = 1l;
+
+  // maximum number of key and value characters carried by one chunk
+  public static final int CHUNK_SIZE = 64 * 1024;
+
+  private long snapshotId;
+  private Map<String, VersionedValue> entries;
+  private String resumeKey;
+  private int resumeOffset;
+  private long resumeVersion;
+
+  // public no-arg constructor required by Externalizable
+  public KVSnapshot() {
+  }
+
+  public KVSnapshot(long snapshotId, Map<String, VersionedValue> entries, String resumeKey, int resumeOffset,
+                    long resumeVersion) {
+    this.snapshotId = snapshotId;
+    this.entries = entries;
+    this.resumeKey = resumeKey;
+    this.resumeOffset = resumeOffset;
+    this.resumeVersion = resumeVersion;
+  }
+
+  /**
+   * Return the id of the read snapshot the copy is read from, to request the next chunk with.
+   * @return the id of the read snapshot the copy is read from
+   */
+  public long getSnapshotId() {
+    return snapshotId;
+  }
+
+  /**
+   * Return the entries of this chunk in key order. The first entry may be the tail of a value
+   * split by the previous chunk, and the last entry may be the head of a value split by this one.
+   * @return the entries of this chunk in key order
+   */
+  public Map<String, VersionedValue> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Return the key to resume the copy from, or null if this is the last chunk.
+   * @return the key to resume the copy from, or null if this is the last chunk
+   */
+  public String getResumeKey() {
+    return resumeKey;
+  }
+
+  /**
+   * Return the offset into the resume key's value to resume the copy from.
+   * @return the offset into the resume key's value to resume the copy from
+   */
+  public int getResumeOffset() {
+    return resumeOffset;
+  }
+
+  /**
+   * Return the version of the value split at the resume offset.
+   * @return the version of the value split at the resume offset
+   */
+  public long getResumeVersion() {
+    return resumeVersion;
+  }
+
+  public boolean isLast() {
+    return resumeKey == null;
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(buffer);
+    KVCodec.writeVarInt(data, entries.size());
+    for (Map.Entry<String, VersionedValue> entry : entries.entrySet()) {
+      KVCodec.writeString(data, entry.getKey());
+      KVCodec.writeVarLong(data, entry.getValue().getVersion());
+      KVCodec.writeVarLong(data, entry.getValue().getExpiresAt());
+      KVCodec.writeString(data, entry.getValue().getValue());
+    }
+    data.flush();
+
+    KVCodec.writeBlock(out, buffer.toByteArray());
+    KVCodec.writeString(out, resumeKey);
+    KVCodec.writeVarInt(out, resumeOffset);
+    KVCodec.writeVarLong(out, resumeVersion);
+    KVCodec.writeVarLong(out, snapshotId);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    DataInputStream data = new DataInputStream(new ByteArrayInputStream(KVCodec.readBlock(in)));
+    int size = KVCodec.readVarInt(data);
+    entries = new LinkedHashMap<>();
+    for (int i = 0; i < size; i++) {
+      String key = KVCodec.readString(data);
+      long version = KVCodec.readVarLong(data);
+      long expiresAt = KVCodec.readVarLong(data);
+      entries.put(key, new VersionedValue(KVCodec.readString(data), version, expiresAt));
+    }
+
+    resumeKey = KVCodec.readString(in);
+    resumeOffset = KVCodec.readVarInt(in);
+    resumeVersion = KVCodec.readVarLong(in);
+    snapshotId = KVCodec.readVarLong(in);
+  }
+
+}
@@ -0,0 +1,30 @@
+package utils;
+
+import java.io.Serializable;
+
+/**
+ * This class represents an Acceptor's answer to a prepare or accept request.
+ * Besides whether the request was granted, it carries the highest ballot the Acceptor has
+ * promised, so that a rejected Proposer can jump straight past it on its next attempt instead
+ * of failing or guessing.
+ */
+public class PaxosResponse implements Serializable {
+  private static final long serialVersionUID = 1l;
+
+  private boolean granted;
+  private long highestBallot;
+
+  public PaxosResponse(boolean granted, long highestBallot) {
+    this.granted = granted;
+    this.highestBallot = highestBallot;
+  }
+
+  public boolean isGranted() {
+    return granted;
+  }
+
+  public long getHighestBallot() {
+    return highestBallot;
+  }
+
+}
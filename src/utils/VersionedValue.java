@@ -0,0 +1,74 @@
+package utils;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * This class represents a stored value together with its version, which is the ballot of the
+ * proposal that committed it, and its expiry time if it was put with a TTL. Versions of one key
+ * only grow, so a client can tell whether a cached value is still current by comparing versions.
+ */
+public class VersionedValue implements Externalizable {
+  private static final long serialVersionUID = 1l;
+
+  private String value;
+  private long version;
+  // expiry time in epoch millis, 0 for never
+  private long expiresAt;
+
+  // public no-arg constructor required by Externalizable
+  public VersionedValue() {
+  }
+
+  public VersionedValue(String value, long version) {
+    this.value = value;
+    this.version = version;
+  }
+
+  public VersionedValue(String value, long version, long expiresAt) {
+    this(value, version);
+    this.expiresAt = expiresAt;
+  }
+
+  /**
+   * Return the value, or null if this is a "not modified" answer to a conditional get.
+   * @return the value, or null if this is a "not modified" answer to a conditional get
+   */
+  public String getValue() {
+    return value;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public long getExpiresAt() {
+    return expiresAt;
+  }
+
+  /**
+   * Return true if this value has a TTL that has run out by the given time.
+   * @param now the time in epoch millis
+   * @return true if this value has expired by the given time, otherwise false
+   */
+  public boolean isExpired(long now) {
+    return expiresAt != 0 && expiresAt <= now;
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    KVCodec.writeVarLong(out, version);
+    KVCodec.writeVarLong(out, expiresAt);
+    KVCodec.writeString(out, value);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    version = KVCodec.readVarLong(in);
+    expiresAt = KVCodec.readVarLong(in);
+    value = KVCodec.readString(in);
+  }
+
+}